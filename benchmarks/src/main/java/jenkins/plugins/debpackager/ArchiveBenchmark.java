@@ -0,0 +1,72 @@
+package jenkins.plugins.debpackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing a staged tree into a compressed <tt>.deb</tt>. Only gzip runs by
+ * default, it needs no external tools; pass <tt>-p codec=xz,zstd</tt> to
+ * compare the others.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ArchiveBenchmark {
+
+    @Param({ "SMALL_FILES", "HUGE_FILES" })
+    public SyntheticWorkspace.Shape shape;
+
+    @Param({ "gzip" })
+    public String codec;
+
+    @Param({ "0" })
+    public String threads;
+
+    private File workspace;
+    private File output;
+
+    @Setup(Level.Trial)
+    public void createWorkspace() throws IOException {
+        workspace = SyntheticWorkspace.create(shape);
+        output = File.createTempFile("deb-packager-bench-", ".deb");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorkspace() throws IOException {
+        SyntheticWorkspace.delete(workspace);
+        output.delete();
+    }
+
+    @Benchmark
+    public long writeArchive() throws Exception {
+        DebArchiveWriter writer = new DebArchiveWriter(output, new DebCompression(codec, "",
+                threads));
+        try {
+            writer.addControlFile("control", "Package: bench\nVersion: 1.0\n"
+                    + "Architecture: all\nMaintainer: bench\nDescription: bench\n", 0644);
+            writer.addTree(workspace);
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        return output.length();
+    }
+}
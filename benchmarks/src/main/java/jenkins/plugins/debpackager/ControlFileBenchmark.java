@@ -0,0 +1,61 @@
+package jenkins.plugins.debpackager;
+
+import hudson.EnvVars;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Generating and parsing control files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ControlFileBenchmark {
+
+    /** Number of environment variables listed in the description. */
+    @Param({ "50", "500" })
+    public int variables;
+
+    private EnvVars env;
+    private String control;
+
+    @Setup
+    public void createEnvironment() {
+        env = new EnvVars();
+        env.put("JOB_NAME", "bench");
+        for (int i = 0; i < variables; i++) {
+            env.put("VARIABLE_" + i, "/some/value/number/" + i);
+        }
+        control = generate();
+    }
+
+    @Benchmark
+    public String generate() {
+        return DebPackagerBuilder.makeControlFile(null, "bench", "1.0-1", "libc6 (>= 2.15)",
+                "Jenkins <jenkins@example.com>", 1234, env);
+    }
+
+    @Benchmark
+    public List<Map<String, String>> parse() throws IOException {
+        return DebControl.parse(new StringReader(control));
+    }
+}
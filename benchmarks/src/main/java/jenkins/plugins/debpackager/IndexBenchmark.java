@@ -0,0 +1,106 @@
+package jenkins.plugins.debpackager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merging new packages into an existing <tt>Packages</tt> index and
+ * rendering <tt>Packages</tt> and <tt>Packages.gz</tt>, without the
+ * installation through sudo.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexBenchmark {
+
+    /** Packages already in the index. */
+    @Param({ "1000", "20000" })
+    public int existing;
+
+    /** Packages added in one update, 1 without and 30 with batching. */
+    @Param({ "1", "30" })
+    public int added;
+
+    private File packages;
+    private List<Map<String, String>> stanzas;
+
+    @Setup(Level.Trial)
+    public void createIndex() throws IOException {
+        List<Map<String, String>> index = new ArrayList<Map<String, String>>();
+        for (int i = 0; i < existing; i++) {
+            index.add(stanza("package" + i, "1.0-" + i));
+        }
+        packages = File.createTempFile("Packages", "");
+        OutputStream out = new FileOutputStream(packages);
+        try {
+            out.write(DebRepository.format(index));
+        } finally {
+            out.close();
+        }
+        stanzas = new ArrayList<Map<String, String>>();
+        for (int i = 0; i < added; i++) {
+            stanzas.add(stanza("package" + i, "2.0-" + i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteIndex() {
+        packages.delete();
+    }
+
+    @Benchmark
+    public int updateIndex() throws IOException {
+        byte[] content = DebRepository.format(DebRepository.merge(DebControl.parse(packages),
+                stanzas));
+        OutputStream out = new GZIPOutputStream(new NullOutputStream());
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return content.length;
+    }
+
+    private static Map<String, String> stanza(String name, String version) {
+        Map<String, String> stanza = new LinkedHashMap<String, String>();
+        stanza.put("Package", name);
+        stanza.put("Version", version);
+        stanza.put("Architecture", "all");
+        stanza.put("Maintainer", "Jenkins <jenkins@example.com>");
+        stanza.put("Installed-Size", "1234");
+        stanza.put("Depends", "libc6 (>= 2.15)");
+        stanza.put("Filename", DebRepository.poolPath(name + "_" + version));
+        stanza.put("Size", "567890");
+        stanza.put("MD5sum", "d41d8cd98f00b204e9800998ecf8427e");
+        stanza.put("SHA1", "da39a3ee5e6b4b0d3255bfef95601890afd80709");
+        stanza.put("SHA256", "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855");
+        stanza.put("Description", name + " (built by jenkins)\n JOB_NAME - " + name);
+        return stanza;
+    }
+}
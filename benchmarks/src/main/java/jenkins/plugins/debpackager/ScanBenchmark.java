@@ -0,0 +1,81 @@
+package jenkins.plugins.debpackager;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Matching copy rules against a workspace, in one walk and, for comparison,
+ * with one Ant scan per rule.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+    @Param({ "SMALL_FILES", "DEEP_TREE" })
+    public SyntheticWorkspace.Shape shape;
+
+    @Param({ "1", "6" })
+    public int rules;
+
+    private File workspace;
+    private List<CopyPath> paths;
+
+    @Setup(Level.Trial)
+    public void createWorkspace() throws IOException {
+        workspace = SyntheticWorkspace.create(shape);
+        paths = new ArrayList<CopyPath>();
+        if (rules == 1) {
+            paths.add(new CopyPath("", "**", "", "opt/bench", "COPY", ""));
+        } else {
+            for (int i = 0; i < rules; i++) {
+                // SMALL_FILES has directories d0..d199, DEEP_TREE a/ and b/
+                paths.add(new CopyPath("", "d" + i + "*/**, " + (i % 2 == 0 ? "a" : "b")
+                        + "/**/f" + (i % 4) + ".txt", "**/*.tmp", "opt/bench" + i, "COPY", ""));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorkspace() throws IOException {
+        SyntheticWorkspace.delete(workspace);
+    }
+
+    @Benchmark
+    public List<List<String>> singleWalk() throws Exception {
+        return WorkspaceScanner.scan(workspace, paths);
+    }
+
+    @Benchmark
+    public void antScanPerRule(Blackhole bh) {
+        for (CopyPath path : paths) {
+            bh.consume(Util.createFileSet(workspace, path.getInclude(),
+                    path.getExclude() + ", .packaged/, .packaged.*")
+                    .getDirectoryScanner(new Project()).getIncludedFiles());
+        }
+    }
+}
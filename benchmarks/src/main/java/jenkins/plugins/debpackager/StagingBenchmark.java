@@ -0,0 +1,71 @@
+package jenkins.plugins.debpackager;
+
+import hudson.FilePath;
+import hudson.model.BuildListener;
+import hudson.model.StreamBuildListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copying a workspace into the staging directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StagingBenchmark {
+
+    @Param({ "SMALL_FILES", "HUGE_FILES", "DEEP_TREE" })
+    public SyntheticWorkspace.Shape shape;
+
+    @Param({ "COPY", "HARDLINK" })
+    public StagingMode mode;
+
+    private File workspace;
+    private File target;
+    private BuildListener listener;
+
+    @Setup(Level.Trial)
+    public void createWorkspace() throws IOException {
+        workspace = SyntheticWorkspace.create(shape);
+        listener = new StreamBuildListener(new NullOutputStream());
+    }
+
+    @Setup(Level.Invocation)
+    public void createTarget() throws IOException {
+        target = new File(workspace, ".packaged");
+        SyntheticWorkspace.delete(target);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorkspace() throws IOException {
+        SyntheticWorkspace.delete(workspace);
+    }
+
+    @Benchmark
+    public CopyResult copyAll() throws Exception {
+        CopyPath path = new CopyPath("", "**", "", "opt/bench", mode.name(), "");
+        return FilePathUtils.copyAll(new FilePath(workspace), Collections.singletonList(path),
+                new FilePath(target), LargeFiles.THRESHOLD, listener);
+    }
+}
@@ -0,0 +1,91 @@
+package jenkins.plugins.debpackager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Generates workspaces for the benchmarks. A shape always produces the same
+ * tree from the same seed, so results of different runs can be compared.
+ * File contents are text-like, so they compress about as well as typical
+ * package payloads.
+ */
+final class SyntheticWorkspace {
+
+    static final long SEED = 0x5eedL;
+
+    enum Shape {
+        /** 20000 files of 0.5-8 KiB in 200 directories. */
+        SMALL_FILES,
+        /** Two files of 256 MiB. */
+        HUGE_FILES,
+        /** A binary tree of directories 10 levels deep, 4 files per directory. */
+        DEEP_TREE
+    }
+
+    private SyntheticWorkspace() {
+    }
+
+    static File create(Shape shape) throws IOException {
+        File dir = File.createTempFile("deb-packager-bench-", "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        Random random = new Random(SEED);
+        switch (shape) {
+        case SMALL_FILES:
+            for (int d = 0; d < 200; d++) {
+                for (int f = 0; f < 100; f++) {
+                    write(new File(dir, "d" + d + "/f" + f + ".txt"), 512 + random.nextInt(7680),
+                            random);
+                }
+            }
+            break;
+        case HUGE_FILES:
+            for (int f = 0; f < 2; f++) {
+                write(new File(dir, "huge" + f + ".bin"), 256 * 1024 * 1024, random);
+            }
+            break;
+        case DEEP_TREE:
+            deepTree(dir, 10, random);
+            break;
+        }
+        return dir;
+    }
+
+    private static void deepTree(File dir, int depth, Random random) throws IOException {
+        for (int f = 0; f < 4; f++) {
+            write(new File(dir, "f" + f + ".txt"), 4096, random);
+        }
+        if (depth > 0) {
+            deepTree(new File(dir, "a"), depth - 1, random);
+            deepTree(new File(dir, "b"), depth - 1, random);
+        }
+    }
+
+    private static void write(File file, long size, Random random) throws IOException {
+        file.getParentFile().mkdirs();
+        byte[] buf = new byte[(int) Math.min(size, 1024 * 1024)];
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < size; written += buf.length) {
+                for (int i = 0; i < buf.length; i++) {
+                    buf[i] = (byte) (i % 80 == 79 ? '\n' : 'a' + random.nextInt(26));
+                }
+                out.write(buf, 0, (int) Math.min(buf.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static void delete(File dir) throws IOException {
+        if (dir != null) {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
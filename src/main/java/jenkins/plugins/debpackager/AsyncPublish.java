@@ -0,0 +1,214 @@
+package jenkins.plugins.debpackager;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.Descriptor;
+import hudson.model.Node;
+import hudson.model.ParametersAction;
+import hudson.model.StreamBuildListener;
+import hudson.model.StringParameterValue;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Publishes the package in the background on the controller, so the build's
+ * executor is free as soon as the package is spooled. The package and its
+ * delta are first copied out of the workspace into
+ * <tt>&lt;node root&gt;/deb-publish-spool/</tt>, since the workspace belongs
+ * to the next build once this one is done; a pool of {@link #WORKERS}
+ * threads then publishes them. Progress is recorded in the build's
+ * {@link PublishStatusAction}, and once the package is published the
+ * downstream projects are started with <tt>DEB_PUBLISH_STATUS</tt> and
+ * <tt>DEB_PKG_NAME</tt>.
+ *
+ * <p>
+ * The build's launcher and listener are done with once its step returns, so
+ * the background task gets a launcher of its own from the node, looked up
+ * again by name, and logs to a listener of its own.
+ */
+public class AsyncPublish extends AbstractDescribableImpl<AsyncPublish> implements
+        Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(AsyncPublish.class.getName());
+
+    /** Packages published at the same time, over all builds. */
+    static final int WORKERS = Integer.getInteger(AsyncPublish.class.getName() + ".workers", 4);
+
+    static final String SPOOL = "deb-publish-spool";
+
+    /** The package inside its spool directory. */
+    static final String SPOOLED_FILE = "package.deb";
+
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(WORKERS,
+            new DaemonThreadFactory());
+
+    private final String downstreamProjects;
+
+    @DataBoundConstructor
+    public AsyncPublish(String downstreamProjects) {
+        this.downstreamProjects = downstreamProjects;
+    }
+
+    /**
+     * Comma separated projects to start once the package is published.
+     */
+    public String getDownstreamProjects() {
+        return downstreamProjects;
+    }
+
+    /**
+     * The publishing a repo builder does, run once the package is spooled.
+     */
+    interface Task {
+        /**
+         * Publishes <tt>packageFile</tt>, relative to <tt>dir</tt> on the
+         * node that built it, running commands with <tt>launcher</tt> and
+         * logging to <tt>listener</tt>.
+         */
+        boolean publish(FilePath dir, String packageFile, Launcher launcher,
+                BuildListener listener) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Spools the package of <tt>build</tt> and queues <tt>task</tt> to
+     * publish it, recording its progress under <tt>step</tt>.
+     */
+    void submit(final AbstractBuild<?, ?> build, final String step, EnvVars env,
+            final Task task, BuildListener listener) throws IOException, InterruptedException {
+        Node node = build.getBuiltOn();
+        FilePath root = node == null ? null : node.getRootPath();
+        if (root == null) {
+            throw new IOException("The node of " + build + " is offline");
+        }
+        final String nodeName = build.getBuiltOnStr();
+        FilePath spool = root.child(SPOOL).child(
+                IsolatedStaging.tag(env) + "-" + step.replaceAll("[^A-Za-z0-9._-]", "_"));
+        final String spoolPath = spool.getRemote();
+        PackagingTimingAction timings = PackagingTimingAction.of(build);
+        long start = System.nanoTime();
+        long size = spool(build.getWorkspace(), DebPackageAction.packageFile(env), spool);
+        timings.record(step, "spool", start, 1, size);
+        listener.getLogger().println(timings.summary(step));
+
+        final PublishStatusAction status = PublishStatusAction.of(build);
+        status.pending(step);
+        final String debName = env.get("DEB_PKG_NAME");
+        listener.getLogger().println("Publishing " + debName + " in the background, see "
+                + build.getUrl() + status.getUrlName());
+        POOL.submit(new Runnable() {
+            public void run() {
+                ByteArrayOutputStream log = new ByteArrayOutputStream();
+                BuildListener listener = new StreamBuildListener(log);
+                boolean published = false;
+                FilePath spool = null;
+                try {
+                    // the node may have reconnected since the package was spooled
+                    Node builtOn = PublishQueue.node(nodeName);
+                    spool = PublishQueue.resolve(nodeName, spoolPath);
+                    published = task.publish(spool, SPOOLED_FILE, builtOn.createLauncher(listener),
+                            listener);
+                } catch (Throwable t) {
+                    t.printStackTrace(listener.getLogger());
+                } finally {
+                    try {
+                        if (spool != null) {
+                            spool.deleteRecursive();
+                        }
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Failed to remove " + spoolPath, e);
+                    }
+                }
+                listener.getLogger().flush();
+                status.finish(build, step, published, log.toString().trim());
+                if (published) {
+                    triggerDownstream(build, debName);
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the package and its delta, if any, into <tt>spool</tt>.
+     *
+     * @return size of the package
+     */
+    @SuppressWarnings("serial")
+    private static long spool(FilePath workspace, final String packageFile, FilePath spool)
+            throws IOException, InterruptedException {
+        final String dir = spool.getRemote();
+        return workspace.act(new FileCallable<Long>() {
+            public Long invoke(File f, VirtualChannel channel) throws IOException,
+                    InterruptedException {
+                File target = new File(dir);
+                if (!target.isDirectory() && !target.mkdirs()) {
+                    throw new IOException("Failed to create " + target);
+                }
+                File deb = new File(f, packageFile);
+                FilePathUtils.copyWithPermissions(deb, new File(target, SPOOLED_FILE));
+                File delta = new File(f, DebPackageAction.deltaFile(packageFile));
+                if (delta.isFile()) {
+                    FilePathUtils.copyWithPermissions(delta, new File(target, DebPackageAction
+                            .deltaFile(SPOOLED_FILE)));
+                }
+                return deb.length();
+            }
+        });
+    }
+
+    private void triggerDownstream(AbstractBuild<?, ?> build, String debName) {
+        String projects = Util.fixEmptyAndTrim(downstreamProjects);
+        if (projects == null) {
+            return;
+        }
+        for (String name : projects.split(",")) {
+            name = name.trim();
+            if (name.length() == 0) {
+                continue;
+            }
+            AbstractProject<?, ?> project = Jenkins.getInstance().getItemByFullName(name,
+                    AbstractProject.class);
+            if (project == null) {
+                LOGGER.warning("No project " + name + " to start after " + build);
+                continue;
+            }
+            project.scheduleBuild2(0, new Cause.UpstreamCause(build), new ParametersAction(
+                    new StringParameterValue("DEB_PUBLISH_STATUS", PublishStatusAction.PUBLISHED),
+                    new StringParameterValue("DEB_PKG_NAME", debName)));
+        }
+    }
+
+    public String toString() {
+        return String.format("{downstreamProjects: %s}", downstreamProjects);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<AsyncPublish> {
+        public String getDisplayName() {
+            return "Publish in the Background";
+        }
+    }
+}
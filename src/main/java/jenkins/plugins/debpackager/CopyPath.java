@@ -1,21 +1,26 @@
 package jenkins.plugins.debpackager;
 
 import hudson.Extension;
-import hudson.FilePath;
 import hudson.model.AbstractDescribableImpl;
-import hudson.model.BuildListener;
 import hudson.model.Descriptor;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
-public class CopyPath extends AbstractDescribableImpl<CopyPath> {
+public class CopyPath extends AbstractDescribableImpl<CopyPath> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private String workingDir;
     private String include;
     private String exclude;
     private String to;
+    private String stagingMode;
+    private String owner;
 
     public String getInclude() {
         return include;
@@ -33,35 +38,62 @@ public class CopyPath extends AbstractDescribableImpl<CopyPath> {
         return workingDir;
     }
 
+    public String getStagingMode() {
+        return StagingMode.fromString(stagingMode).name();
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
     @DataBoundConstructor
-    public CopyPath(String workingDir, String include, String exclude, String to) {
+    public CopyPath(String workingDir, String include, String exclude, String to,
+            String stagingMode, String owner) {
         this.workingDir = workingDir;
         this.include = include;
         this.exclude = exclude;
         this.to = to;
+        this.stagingMode = stagingMode;
+        this.owner = owner;
     }
 
     public String toString() {
-        return String.format("{workingDir: %s, include: %s, exclude: %s, to: %s}", this.workingDir,
-                this.include, this.exclude, this.to);
+        return String.format(
+                "{workingDir: %s, include: %s, exclude: %s, to: %s, stagingMode: %s, owner: %s}",
+                this.workingDir, this.include, this.exclude, this.to, getStagingMode(),
+                this.owner);
     }
 
-    public void copy(FilePath workspace, FilePath packagePath, BuildListener listener)
-            throws IOException, InterruptedException {
-        FilePath moveToPath = packagePath.child(to);
-        moveToPath.mkdirs();
-
-        FilePath workingPath = workspace;
+    /**
+     * Short description of the rule for reports.
+     */
+    String label() {
+        return (workingDir.isEmpty() ? "" : workingDir + ": ") + include + " -> " + to;
+    }
 
-        if (!workingDir.isEmpty()) {
-            workingPath = workspace.child(workingDir);
-            workingPath.mkdirs();
+    /**
+     * Streams <tt>files</tt>, as matched by {@link WorkspaceScanner}, straight
+     * into a package archive instead of copying them into the staging
+     * directory. Runs on the node holding the workspace.
+     */
+    public void stream(File workspace, List<String> files, DebArchiveWriter writer,
+            CopyResult result, CopyProgress progress) throws IOException, InterruptedException {
+        File workingPath = workingPath(workspace);
+        writer.setOwner(to, owner);
+        writer.addDirectory(to);
+        long bytes = 0;
+        for (String file : files) {
+            File source = new File(workingPath, file);
+            writer.addFile(to + "/" + file, source);
+            bytes += source.length();
+            result.copied(source.length());
+            progress.copied(source.length());
         }
-        FilePathUtils.copyRecursiveWithPermissions(workingPath, include, exclude + ", .packaged/",
-                moveToPath, listener);
-        // workingPath.copyRecursiveTo(include, exclude +
-        // ", .packaged/",moveToPath);
+        result.ruleCopied(label(), files.size(), bytes);
+    }
 
+    File workingPath(File workspace) {
+        return workingDir.isEmpty() ? workspace : new File(workspace, workingDir);
     }
 
     @Extension
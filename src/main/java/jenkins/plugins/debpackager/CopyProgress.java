@@ -0,0 +1,71 @@
+package jenkins.plugins.debpackager;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports the progress of a long copy to the build log. The copy loop only
+ * bumps counters; a timer thread prints a summary line every
+ * {@link #INTERVAL} seconds, so no log write happens per file.
+ */
+class CopyProgress {
+
+    /** Seconds between progress lines. */
+    static final long INTERVAL = Long.getLong(CopyProgress.class.getName() + ".interval", 10);
+
+    /** Number of paths listed in the log after a copy. */
+    static final int SAMPLE = Integer.getInteger(CopyProgress.class.getName() + ".sample", 20);
+
+    private static final ScheduledExecutorService TIMER = Executors
+            .newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+
+    private final PrintStream log;
+    private final String verb;
+    private final long total;
+    private final long start = System.nanoTime();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ScheduledFuture<?> report;
+
+    /**
+     * Starts reporting.
+     *
+     * @param total
+     *            number of files expected, or -1 if unknown
+     */
+    CopyProgress(PrintStream log, String verb, long total) {
+        this.log = log;
+        this.verb = verb;
+        this.total = total;
+        this.report = TIMER.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                CopyProgress.this.log.println(CopyProgress.this.toString());
+            }
+        }, INTERVAL, INTERVAL, TimeUnit.SECONDS);
+    }
+
+    void copied(long size) {
+        files.incrementAndGet();
+        bytes.addAndGet(size);
+    }
+
+    /**
+     * Stops reporting.
+     */
+    void close() {
+        report.cancel(false);
+    }
+
+    public String toString() {
+        long millis = (System.nanoTime() - start) / 1000000;
+        return String.format("%s %d%s file(s), %.1f MB, %.1f MB/s", verb, files.get(),
+                total < 0 ? "" : "/" + total, bytes.get() / 1024.0 / 1024.0,
+                PackagingTimingAction.megabytesPerSecond(bytes.get(), millis));
+    }
+}
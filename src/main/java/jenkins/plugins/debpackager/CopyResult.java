@@ -0,0 +1,158 @@
+package jenkins.plugins.debpackager;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Summary of a copy performed on the node holding the workspace, returned in
+ * one piece instead of reporting back per file. Besides the counters it holds
+ * the MD5 of every staged file, for <tt>DEBIAN/md5sums</tt>, and their
+ * installed size.
+ */
+public class CopyResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int files;
+    private long bytes;
+    private int linked;
+    private int skipped;
+    private int removed;
+    private final List<String> failures = new ArrayList<String>();
+    private final Map<String, String> md5sums = new TreeMap<String, String>();
+    private long installedSize;
+    private final Map<String, long[]> rules = new LinkedHashMap<String, long[]>();
+    private long scanNanos;
+
+    public int getFiles() {
+        return files;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public int getLinked() {
+        return linked;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    public int getRemoved() {
+        return removed;
+    }
+
+    public List<String> getFailures() {
+        return failures;
+    }
+
+    public Map<String, String> getMd5sums() {
+        return md5sums;
+    }
+
+    /**
+     * Installed size in KiB, each file rounded up the way dpkg does.
+     */
+    public long getInstalledSize() {
+        return installedSize;
+    }
+
+    /**
+     * Files and bytes copied per copy rule, keyed by
+     * {@link CopyPath#label()}.
+     */
+    public Map<String, long[]> getRules() {
+        return rules;
+    }
+
+    /**
+     * Time spent matching the copy rules against the workspace, which is
+     * part of the copy but recorded as a phase of its own.
+     */
+    public long getScanNanos() {
+        return scanNanos;
+    }
+
+    void scanned(long nanos) {
+        scanNanos += nanos;
+    }
+
+    /**
+     * Adds the counters and checksums of <tt>other</tt>, whose paths are
+     * relative to <tt>prefix</tt>.
+     */
+    public void merge(CopyResult other, String prefix) {
+        files += other.files;
+        bytes += other.bytes;
+        linked += other.linked;
+        skipped += other.skipped;
+        removed += other.removed;
+        failures.addAll(other.failures);
+        installedSize += other.installedSize;
+        scanNanos += other.scanNanos;
+        for (Map.Entry<String, long[]> e : other.rules.entrySet()) {
+            ruleCopied(e.getKey(), e.getValue()[0], e.getValue()[1]);
+        }
+        for (Map.Entry<String, String> e : other.md5sums.entrySet()) {
+            md5sums.put(DebArchiveWriter.normalize(prefix + "/" + e.getKey()), e.getValue());
+        }
+    }
+
+    /**
+     * Contents of <tt>DEBIAN/md5sums</tt>.
+     */
+    public String formatMd5sums() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : md5sums.entrySet()) {
+            sb.append(e.getValue()).append("  ").append(e.getKey()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    void copied(long size) {
+        files++;
+        bytes += size;
+    }
+
+    void ruleCopied(String rule, long files, long bytes) {
+        long[] counters = rules.get(rule);
+        if (counters == null) {
+            counters = new long[2];
+            rules.put(rule, counters);
+        }
+        counters[0] += files;
+        counters[1] += bytes;
+    }
+
+    void linked() {
+        linked++;
+    }
+
+    void skipped() {
+        skipped++;
+    }
+
+    void removed() {
+        removed++;
+    }
+
+    void staged(String path, long size, String md5) {
+        md5sums.put(path, md5);
+        installedSize += (size + 1023) / 1024;
+    }
+
+    void failed(String path, Throwable e) {
+        failures.add(path + ": " + e);
+    }
+
+    public String toString() {
+        return String.format("%d file(s) (%d linked), %d bytes, %d failure(s)", files, linked,
+                bytes, failures.size());
+    }
+}
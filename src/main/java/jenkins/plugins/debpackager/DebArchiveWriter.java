@@ -0,0 +1,509 @@
+package jenkins.plugins.debpackager;
+
+import hudson.FilePath;
+import hudson.model.BuildListener;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+
+/**
+ * Writes a .deb (an ar archive holding debian-binary, control.tar.gz and
+ * data.tar.gz/xz/zst) without forking dpkg-deb.
+ *
+ * <p>
+ * Payload files are streamed straight into the compressed data member, which
+ * is buffered in a temporary file next to the output until {@link #finish()}
+ * assembles the archive. Ownership is only ever recorded in the tar headers,
+ * the way fakeroot does it: entries are owned by root unless an owner was
+ * mapped onto their path with {@link #setOwner(String, String)}.
+ *
+ * <p>
+ * Given a <tt>SOURCE_DATE_EPOCH</tt>, the writer produces the same bytes for
+ * the same inputs: modification times are clamped to it and permissions are
+ * normalized to 0644/0755. Entries are always written in a stable order.
+ */
+public class DebArchiveWriter {
+
+    private static final String DEBIAN_BINARY = "2.0\n";
+    private static final int DIR_MODE = 040000;
+    private static final int FILE_MODE = 0100000;
+    private static final int SYMLINK_MODE = 0120000;
+
+    /**
+     * Largest entry the ustar size field holds (8 GiB - 1). The tar writer
+     * has no big number extension, so bigger files need <tt>dpkg-deb</tt>.
+     */
+    static final long MAX_ENTRY_SIZE = 077777777777L;
+
+    private final File output;
+    private final File dataFile;
+    private final String dataMember;
+    private final TarOutputStream dataTar;
+    private final Map<String, ControlFile> controlFiles = new LinkedHashMap<String, ControlFile>();
+    private final Set<String> directories = new HashSet<String>();
+    private final Map<String, String> owners = new HashMap<String, String>();
+    private final long mtime;
+    private final boolean reproducible;
+    private Map<String, String> md5sums;
+    private long installedSize;
+
+    public DebArchiveWriter(File output, DebCompression compression) throws IOException {
+        this(output, compression, -1);
+    }
+
+    /**
+     * @param sourceDateEpoch
+     *            seconds since the epoch to clamp timestamps to, or -1 to keep
+     *            them as they are
+     */
+    public DebArchiveWriter(File output, DebCompression compression, long sourceDateEpoch)
+            throws IOException {
+        if (compression == null) {
+            compression = DebCompression.DEFAULT;
+        }
+        this.reproducible = sourceDateEpoch >= 0;
+        this.mtime = reproducible ? sourceDateEpoch * 1000 : System.currentTimeMillis();
+        this.output = output;
+        this.dataFile = new File(output.getParentFile(), output.getName() + ".data");
+        this.dataMember = "data.tar." + compression.getExtension();
+        this.dataTar = new TarOutputStream(compression.compress(new BufferedOutputStream(
+                new FileOutputStream(dataFile)), reproducible));
+        this.dataTar.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+        addDirectory("");
+    }
+
+    /**
+     * Builds <tt>packageFile</tt> in the workspace directly from the copy
+     * rules, without staging the payload on disk first.
+     */
+    @SuppressWarnings("serial")
+    public static CopyResult streamPackage(FilePath workspace, final String packageFile,
+            List<CopyPath> copyPaths, final LinkedHashMap<String, String> controlFiles,
+            final DebCompression compression, final long sourceDateEpoch,
+            final BuildListener listener) throws IOException, InterruptedException {
+        final List<CopyPath> paths = new ArrayList<CopyPath>();
+        if (copyPaths != null) {
+            paths.addAll(copyPaths);
+        }
+        return workspace.act(new FileCallable<CopyResult>() {
+            public CopyResult invoke(File f, VirtualChannel channel) throws IOException,
+                    InterruptedException {
+                CopyResult result = new CopyResult();
+                DebArchiveWriter writer = new DebArchiveWriter(new File(f, packageFile),
+                        compression, sourceDateEpoch);
+                try {
+                    writer.collectMd5sums();
+                    for (Map.Entry<String, String> e : controlFiles.entrySet()) {
+                        writer.addControlFile(e.getKey(), e.getValue(),
+                                e.getKey().equals("control") ? 0644 : 0755);
+                    }
+                    long scanStart = System.nanoTime();
+                    List<List<String>> matches = WorkspaceScanner.scan(f, paths);
+                    result.scanned(System.nanoTime() - scanStart);
+                    long total = 0;
+                    for (List<String> files : matches) {
+                        total += files.size();
+                    }
+                    CopyProgress progress = new CopyProgress(listener.getLogger(), "Streamed",
+                            total);
+                    try {
+                        for (int i = 0; i < paths.size(); i++) {
+                            paths.get(i).stream(f, matches.get(i), writer, result, progress);
+                        }
+                    } finally {
+                        progress.close();
+                    }
+                    writer.finish();
+                } finally {
+                    writer.close();
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Records <tt>owner</tt> (<tt>user[:group]</tt>, names or numeric ids) for
+     * <tt>path</tt> and everything below it.
+     */
+    public void setOwner(String path, String owner) {
+        if (owner != null && owner.trim().length() > 0) {
+            owners.put(normalize(path), owner.trim());
+        }
+    }
+
+    /**
+     * Loads owner mappings written by {@link #formatOwners(Map)}.
+     */
+    public void loadOwners(File file) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        for (Object line : FileUtils.readLines(file, "UTF-8")) {
+            String[] fields = ((String) line).split("\t");
+            if (fields.length == 2) {
+                setOwner(fields[0], fields[1]);
+            }
+        }
+    }
+
+    public static String formatOwners(Map<String, String> owners) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : owners.entrySet()) {
+            sb.append(normalize(e.getKey())).append('\t').append(e.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Computes the MD5 of every payload file while it is written and adds
+     * <tt>md5sums</tt> and the <tt>Installed-Size</tt> field to the control
+     * member when the archive is finished.
+     */
+    public void collectMd5sums() {
+        md5sums = new TreeMap<String, String>();
+    }
+
+    public void addControlFile(String name, String contents, int mode) {
+        controlFiles.put(name, new ControlFile(contents, mode));
+    }
+
+    public void addDirectory(String path) throws IOException {
+        path = normalize(path);
+        if (directories.contains(path)) {
+            return;
+        }
+        int slash = path.lastIndexOf('/');
+        if (slash > 0) {
+            addDirectory(path.substring(0, slash));
+        } else if (!path.isEmpty()) {
+            addDirectory("");
+        }
+        directories.add(path);
+
+        TarEntry entry = newEntry(path.isEmpty() ? "./" : "./" + path + "/");
+        setOwner(entry, path);
+        entry.setMode(DIR_MODE | 0755);
+        entry.setModTime(mtime);
+        dataTar.putNextEntry(entry);
+        dataTar.closeEntry();
+    }
+
+    public void addFile(String path, File source) throws IOException, InterruptedException {
+        path = normalize(path);
+        int slash = path.lastIndexOf('/');
+        addDirectory(slash > 0 ? path.substring(0, slash) : "");
+
+        String linkTarget = Util.isSymlink(source) ? Util.resolveSymlink(source) : null;
+        TarEntry entry;
+        if (linkTarget != null) {
+            entry = new TarEntry("./" + path, TarConstants.LF_SYMLINK);
+            entry.setLinkName(linkTarget);
+            entry.setMode(SYMLINK_MODE | 0777);
+        } else {
+            if (source.length() > MAX_ENTRY_SIZE) {
+                throw new IOException(source + " is " + source.length() / 1024 / 1024
+                        + " MB, the in-process writer only handles files up to 8 GiB;"
+                        + " build this package with dpkg-deb");
+            }
+            entry = newEntry("./" + path);
+            entry.setMode(FILE_MODE | normalizeMode(modeOf(source, 0644)));
+            entry.setSize(source.length());
+        }
+        setOwner(entry, path);
+        entry.setModTime(reproducible ? Math.min(source.lastModified(), mtime) : source
+                .lastModified());
+        dataTar.putNextEntry(entry);
+        if (linkTarget == null) {
+            InputStream in = new FileInputStream(source);
+            try {
+                if (md5sums == null) {
+                    IOUtils.copy(in, dataTar);
+                } else {
+                    MessageDigest md5 = Digests.digest("MD5");
+                    byte[] buf = new byte[65536];
+                    int n;
+                    while ((n = in.read(buf)) >= 0) {
+                        md5.update(buf, 0, n);
+                        dataTar.write(buf, 0, n);
+                    }
+                    md5sums.put(path, Digests.hex(md5));
+                    installedSize += (entry.getSize() + 1023) / 1024;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        dataTar.closeEntry();
+    }
+
+    /**
+     * Adds a staged package tree: everything under <tt>DEBIAN</tt> goes into
+     * the control member and everything else into the data member.
+     */
+    public void addTree(File root) throws IOException, InterruptedException {
+        String[] names = root.list();
+        if (names == null) {
+            throw new IOException("Cannot list " + root);
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            File child = new File(root, name);
+            if (name.equals("DEBIAN") && child.isDirectory()) {
+                addControlDirectory(child);
+            } else {
+                addTree(child, name);
+            }
+        }
+    }
+
+    private void addTree(File file, String path) throws IOException, InterruptedException {
+        if (file.isDirectory() && !Util.isSymlink(file)) {
+            addDirectory(path);
+            String[] names = file.list();
+            if (names == null) {
+                throw new IOException("Cannot list " + file);
+            }
+            Arrays.sort(names);
+            for (String name : names) {
+                addTree(new File(file, name), path + "/" + name);
+            }
+        } else {
+            addFile(path, file);
+        }
+    }
+
+    private void addControlDirectory(File debianDir) throws IOException, InterruptedException {
+        String[] names = debianDir.list();
+        Arrays.sort(names);
+        for (String name : names) {
+            File file = new File(debianDir, name);
+            if (file.isFile()) {
+                addControlFile(name, FileUtils.readFileToString(file, "UTF-8"),
+                        normalizeMode(modeOf(file, 0644)));
+            }
+        }
+    }
+
+    /**
+     * Assembles the final archive. The writer cannot be used afterwards.
+     */
+    public void finish() throws IOException {
+        dataTar.close();
+        if (md5sums != null) {
+            addMd5sums();
+        }
+        byte[] control = buildControlTar();
+
+        // never write through an existing file, it may be a hardlink into the cache
+        output.delete();
+        FileOutputStream file = new FileOutputStream(output);
+        OutputStream out = new BufferedOutputStream(file);
+        try {
+            out.write("!<arch>\n".getBytes("US-ASCII"));
+            writeMember(out, "debian-binary", DEBIAN_BINARY.getBytes("US-ASCII"));
+            writeMember(out, "control.tar.gz", control);
+
+            long size = dataFile.length();
+            writeMemberHeader(out, dataMember, size);
+            // the data member is copied by the kernel, not through the heap
+            out.flush();
+            LargeFiles.transfer(dataFile, file.getChannel());
+            if (size % 2 != 0) {
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        dataFile.delete();
+    }
+
+    /**
+     * Releases the temporary data member. Safe to call after {@link #finish()}.
+     */
+    public void close() {
+        IOUtils.closeQuietly(dataTar);
+        dataFile.delete();
+    }
+
+    private void addMd5sums() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : md5sums.entrySet()) {
+            sb.append(e.getValue()).append("  ").append(e.getKey()).append('\n');
+        }
+        controlFiles.put("md5sums", new ControlFile(sb.toString(), 0644));
+
+        ControlFile control = controlFiles.get("control");
+        if (control != null && !control.contents.contains("\nInstalled-Size:")) {
+            String field = "Installed-Size: " + installedSize + "\n";
+            int description = control.contents.indexOf("\nDescription:");
+            String contents = description < 0 ? control.contents + field : control.contents
+                    .substring(0, description + 1) + field
+                    + control.contents.substring(description + 1);
+            controlFiles.put("control", new ControlFile(contents, control.mode));
+        }
+    }
+
+    private byte[] buildControlTar() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TarOutputStream tar = new TarOutputStream(new GZIPOutputStream(bytes));
+        tar.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+
+        TarEntry dir = newEntry("./");
+        dir.setMode(DIR_MODE | 0755);
+        dir.setModTime(mtime);
+        tar.putNextEntry(dir);
+        tar.closeEntry();
+
+        for (Map.Entry<String, ControlFile> e : controlFiles.entrySet()) {
+            byte[] data = e.getValue().contents.getBytes("UTF-8");
+            TarEntry entry = newEntry("./" + e.getKey());
+            entry.setMode(FILE_MODE | e.getValue().mode);
+            entry.setSize(data.length);
+            entry.setModTime(mtime);
+            tar.putNextEntry(entry);
+            tar.write(data);
+            tar.closeEntry();
+        }
+        tar.close();
+        return bytes.toByteArray();
+    }
+
+    private void writeMember(OutputStream out, String name, byte[] data) throws IOException {
+        writeMemberHeader(out, name, data.length);
+        out.write(data);
+        if (data.length % 2 != 0) {
+            out.write('\n');
+        }
+    }
+
+    private void writeMemberHeader(OutputStream out, String name, long size) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(pad(name, 16));
+        sb.append(pad(String.valueOf(mtime / 1000), 12));
+        sb.append(pad("0", 6));
+        sb.append(pad("0", 6));
+        sb.append(pad("100644", 8));
+        sb.append(pad(String.valueOf(size), 10));
+        sb.append("`\n");
+        out.write(sb.toString().getBytes("US-ASCII"));
+    }
+
+    private int normalizeMode(int mode) {
+        if (!reproducible) {
+            return mode;
+        }
+        return (mode & 0111) != 0 ? 0755 : 0644;
+    }
+
+    private static String pad(String value, int width) {
+        StringBuilder sb = new StringBuilder(value);
+        while (sb.length() < width) {
+            sb.append(' ');
+        }
+        return sb.toString();
+    }
+
+    private static TarEntry newEntry(String name) {
+        TarEntry entry = new TarEntry(name);
+        entry.setUserId(0);
+        entry.setGroupId(0);
+        entry.setUserName("root");
+        entry.setGroupName("root");
+        return entry;
+    }
+
+    private void setOwner(TarEntry entry, String path) {
+        String owner = null;
+        String prefix = path;
+        while (owner == null) {
+            owner = owners.get(prefix);
+            if (prefix.isEmpty()) {
+                break;
+            }
+            int slash = prefix.lastIndexOf('/');
+            prefix = slash < 0 ? "" : prefix.substring(0, slash);
+        }
+        if (owner == null) {
+            entry.setUserId(0);
+            entry.setGroupId(0);
+            entry.setUserName("root");
+            entry.setGroupName("root");
+            return;
+        }
+
+        int colon = owner.indexOf(':');
+        String user = colon < 0 ? owner : owner.substring(0, colon);
+        String group = colon < 0 ? owner : owner.substring(colon + 1);
+        if (user.matches("\\d+")) {
+            entry.setUserId(Integer.parseInt(user));
+            entry.setUserName("");
+        } else {
+            entry.setUserId(0);
+            entry.setUserName(user);
+        }
+        if (group.matches("\\d+")) {
+            entry.setGroupId(Integer.parseInt(group));
+            entry.setGroupName("");
+        } else {
+            entry.setGroupId(0);
+            entry.setGroupName(group);
+        }
+    }
+
+    private static int modeOf(File file, int defaultMode) throws IOException, InterruptedException {
+        int mode = new FilePath(file).mode();
+        return mode < 0 ? defaultMode : mode & 07777;
+    }
+
+    static String normalize(String path) {
+        path = path.replace('\\', '/');
+        while (path.startsWith("./")) {
+            path = path.substring(2);
+        }
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        path = path.replaceAll("/+", "/");
+        return path.equals(".") ? "" : path;
+    }
+
+    private static final class ControlFile {
+        private final String contents;
+        private final int mode;
+
+        private ControlFile(String contents, int mode) {
+            this.contents = contents;
+            this.mode = mode;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package jenkins.plugins.debpackager;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Codec, level and thread count used for the data member of a package.
+ */
+public class DebCompression extends AbstractDescribableImpl<DebCompression> implements
+        Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final DebCompression DEFAULT = new DebCompression("gzip", "", "0");
+
+    private final String codec;
+    private final String level;
+    private final String threads;
+
+    @DataBoundConstructor
+    public DebCompression(String codec, String level, String threads) {
+        this.codec = codec;
+        this.level = level;
+        this.threads = threads;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public String getLevel() {
+        return level;
+    }
+
+    public String getThreads() {
+        return threads;
+    }
+
+    public String getExtension() {
+        if ("xz".equals(codec)) {
+            return "xz";
+        } else if ("zstd".equals(codec)) {
+            return "zst";
+        }
+        return "gz";
+    }
+
+    /**
+     * Compression level, or the codec's default when not set.
+     */
+    int resolveLevel() {
+        int defaultLevel = "zstd".equals(codec) ? 3 : 6;
+        return parse(level, defaultLevel);
+    }
+
+    /**
+     * Lowest and highest level <tt>codec</tt> accepts.
+     */
+    static int[] levels(String codec) {
+        if ("xz".equals(codec)) {
+            return new int[] { 0, 9 };
+        } else if ("zstd".equals(codec)) {
+            return new int[] { 1, 22 };
+        }
+        return new int[] { 1, 9 };
+    }
+
+    /**
+     * The binary the codec is piped through, or null for in-process gzip.
+     */
+    static String tool(String codec) {
+        return "xz".equals(codec) || "zstd".equals(codec) ? codec : null;
+    }
+
+    /**
+     * Thread count, with 0 meaning one per available processor.
+     */
+    int resolveThreads() {
+        int n = parse(threads, 1);
+        return n <= 0 ? Runtime.getRuntime().availableProcessors() : n;
+    }
+
+    public OutputStream compress(OutputStream out) throws IOException {
+        return compress(out, false);
+    }
+
+    /**
+     * @param reproducible
+     *            whether the output must not depend on the machine; xz
+     *            splits its output into blocks only in multi-threaded mode,
+     *            so it is kept in that mode even on a single processor
+     */
+    public OutputStream compress(OutputStream out, boolean reproducible) throws IOException {
+        int lvl = resolveLevel();
+        int[] range = levels(codec);
+        if (lvl < range[0] || lvl > range[1]) {
+            throw new IOException(getExtension() + " compression level " + lvl
+                    + " is not between " + range[0] + " and " + range[1]);
+        }
+        int n = resolveThreads();
+        if ("xz".equals(codec)) {
+            if (reproducible) {
+                n = Math.max(2, n);
+            }
+            return new ProcessCompressorOutputStream(out, "xz", "-z", "-c", "-T" + n, "-" + lvl);
+        } else if ("zstd".equals(codec)) {
+            return new ProcessCompressorOutputStream(out, "zstd", "-q", "-c", "-T" + n, "-" + lvl,
+                    lvl > 19 ? "--ultra" : "--no-progress");
+        }
+        return new ParallelGzipOutputStream(out, lvl, n);
+    }
+
+    /**
+     * The same settings as <tt>dpkg-deb</tt> options. The level is only
+     * passed when one is set; dpkg-deb picks its thread count itself.
+     */
+    List<String> dpkgDebArgs() {
+        List<String> args = new ArrayList<String>();
+        args.add("-Z" + ("xz".equals(codec) || "zstd".equals(codec) ? codec : "gzip"));
+        if (level != null && level.trim().length() > 0) {
+            args.add("-z" + resolveLevel());
+        }
+        return args;
+    }
+
+    private static int parse(String value, int defaultValue) {
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public String toString() {
+        return String.format("{codec: %s, level: %s, threads: %s}", codec, level, threads);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<DebCompression> {
+        public String getDisplayName() {
+            return "Compression";
+        }
+
+        /**
+         * Warns when the binary xz or zstd is piped through is missing. Only
+         * the controller can be checked here; the nodes need it as well.
+         */
+        public FormValidation doCheckCodec(@QueryParameter String value) {
+            String tool = tool(value);
+            if (tool == null) {
+                return FormValidation.ok();
+            }
+            try {
+                Process p = new ProcessBuilder(tool, "--version").redirectErrorStream(true)
+                        .start();
+                p.getOutputStream().close();
+                IOUtils.toString(p.getInputStream());
+                if (p.waitFor() == 0) {
+                    return FormValidation.ok();
+                }
+            } catch (IOException e) {
+                // not installed
+            } catch (InterruptedException e) {
+                return FormValidation.ok();
+            }
+            return FormValidation.warning(tool + " is not installed on the controller; every"
+                    + " node that packages with it needs " + tool + " on its PATH");
+        }
+
+        public FormValidation doCheckLevel(@QueryParameter String value,
+                @QueryParameter String codec) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.ok();
+            }
+            int[] range = levels(codec);
+            try {
+                int level = Integer.parseInt(value.trim());
+                if (level >= range[0] && level <= range[1]) {
+                    return FormValidation.ok();
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            return FormValidation.error("The level must be between " + range[0] + " and "
+                    + range[1]);
+        }
+
+        public FormValidation doCheckThreads(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.ok();
+            }
+            try {
+                if (Integer.parseInt(value.trim()) >= 0) {
+                    return FormValidation.ok();
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            return FormValidation.error("The thread count must be 0 or more");
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package jenkins.plugins.debpackager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+
+/**
+ * Reads and writes Debian control data: the <tt>control</tt> file of a .deb
+ * and the stanzas of a <tt>Packages</tt> index.
+ */
+class DebControl {
+
+    /**
+     * Extracts the fields of the <tt>control</tt> file of a .deb, reading only
+     * the ar header and the control member.
+     */
+    static Map<String, String> readControl(File deb) throws IOException, InterruptedException {
+        InputStream in = new BufferedInputStream(new FileInputStream(deb));
+        try {
+            byte[] magic = new byte[8];
+            readFully(in, magic);
+            if (!"!<arch>\n".equals(new String(magic, "US-ASCII"))) {
+                throw new IOException(deb + " is not a Debian package");
+            }
+            byte[] header = new byte[60];
+            while (true) {
+                readFully(in, header);
+                String name = new String(header, 0, 16, "US-ASCII").trim();
+                long size = Long.parseLong(new String(header, 48, 10, "US-ASCII").trim());
+                if (name.endsWith("/")) {
+                    name = name.substring(0, name.length() - 1);
+                }
+                if (name.startsWith("control.tar")) {
+                    byte[] member = new byte[(int) size];
+                    readFully(in, member);
+                    return parse(new StringReader(extractControl(name, member))).get(0);
+                }
+                skipFully(in, size + (size % 2));
+            }
+        } catch (EOFException e) {
+            throw new IOException(deb + " has no control member");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String extractControl(String member, byte[] data) throws IOException,
+            InterruptedException {
+        InputStream raw;
+        if (member.endsWith(".gz")) {
+            raw = new GZIPInputStream(new ByteArrayInputStream(data));
+        } else if (member.endsWith(".xz")) {
+            raw = decompress(data, "xz", "-dc");
+        } else if (member.endsWith(".zst")) {
+            raw = decompress(data, "zstd", "-dcq");
+        } else {
+            raw = new ByteArrayInputStream(data);
+        }
+
+        TarInputStream tar = new TarInputStream(raw);
+        try {
+            TarEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                String name = DebArchiveWriter.normalize(entry.getName());
+                if (name.equals("control")) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    IOUtils.copy(tar, out);
+                    return out.toString("UTF-8");
+                }
+            }
+        } finally {
+            tar.close();
+        }
+        throw new IOException("No control file in " + member);
+    }
+
+    private static InputStream decompress(byte[] data, String... command) throws IOException,
+            InterruptedException {
+        Process p = new ProcessBuilder(command).start();
+        final byte[] input = data;
+        final OutputStream stdin = p.getOutputStream();
+        Thread feeder = new Thread("feed " + command[0]) {
+            public void run() {
+                try {
+                    stdin.write(input);
+                    stdin.close();
+                } catch (IOException e) {
+                    // reported through the exit code
+                }
+            }
+        };
+        feeder.start();
+        byte[] out = IOUtils.toByteArray(p.getInputStream());
+        feeder.join();
+        if (p.waitFor() != 0) {
+            throw new IOException(command[0] + " failed to decompress the control member");
+        }
+        return new ByteArrayInputStream(out);
+    }
+
+    /**
+     * Parses control paragraphs separated by blank lines. Field order and
+     * continuation lines are preserved.
+     */
+    static List<Map<String, String>> parse(Reader reader) throws IOException {
+        List<Map<String, String>> stanzas = new ArrayList<Map<String, String>>();
+        BufferedReader in = new BufferedReader(reader);
+        Map<String, String> stanza = null;
+        String field = null;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.trim().length() == 0) {
+                stanza = null;
+                field = null;
+            } else if ((line.startsWith(" ") || line.startsWith("\t")) && field != null) {
+                stanza.put(field, stanza.get(field) + "\n" + line);
+            } else {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                if (stanza == null) {
+                    stanza = new LinkedHashMap<String, String>();
+                    stanzas.add(stanza);
+                }
+                field = line.substring(0, colon).trim();
+                stanza.put(field, line.substring(colon + 1).trim());
+            }
+        }
+        return stanzas;
+    }
+
+    static List<Map<String, String>> parse(File file) throws IOException {
+        if (!file.isFile()) {
+            return new ArrayList<Map<String, String>>();
+        }
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            return parse(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    static void format(Map<String, String> stanza, StringBuilder sb) {
+        for (Map.Entry<String, String> e : stanza.entrySet()) {
+            // fields such as Conffiles start on the next line
+            sb.append(e.getKey()).append(e.getValue().startsWith("\n") ? ":" : ": ")
+                    .append(e.getValue()).append('\n');
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buf) throws IOException {
+        int off = 0;
+        while (off < buf.length) {
+            int n = in.read(buf, off, buf.length - off);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            off += n;
+        }
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+}
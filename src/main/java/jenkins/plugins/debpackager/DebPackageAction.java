@@ -0,0 +1,147 @@
+package jenkins.plugins.debpackager;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.InvisibleAction;
+
+/**
+ * State the structurer hands over to the later packaging steps of the same
+ * build.
+ */
+public class DebPackageAction extends InvisibleAction {
+
+    /** The package, relative to the workspace, unless isolated staging moves it. */
+    static final String PACKAGE_FILE = ".packaged.deb";
+
+    private boolean prebuilt;
+    /** Only needed by the Dpkg step of the same build, never saved with it. */
+    private transient PackageCache cache;
+    private String cacheKey;
+    private long sourceDateEpoch = -1;
+    private String buildDir;
+    private String stagingRoot;
+    private boolean inMemory;
+    private String indexLocation;
+    private String reservedPackage;
+    private String reservedVersion;
+
+    /**
+     * Whether <tt>.packaged.deb</tt> already exists, streamed or taken from the
+     * cache, so the Dpkg step has nothing to do.
+     */
+    public boolean isPrebuilt() {
+        return prebuilt;
+    }
+
+    public void setPrebuilt(boolean prebuilt) {
+        this.prebuilt = prebuilt;
+    }
+
+    public PackageCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Key the package should be stored under once it is built.
+     */
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    /**
+     * Timestamp to clamp archive entries to for reproducible output, in
+     * seconds, or -1.
+     */
+    public long getSourceDateEpoch() {
+        return sourceDateEpoch;
+    }
+
+    public void setSourceDateEpoch(long sourceDateEpoch) {
+        this.sourceDateEpoch = sourceDateEpoch;
+    }
+
+    public void setCache(PackageCache cache, String cacheKey) {
+        this.cache = cache;
+        this.cacheKey = cacheKey;
+    }
+
+    /**
+     * This build's own directory in the workspace with isolated staging, or
+     * null.
+     */
+    public String getBuildDir() {
+        return buildDir;
+    }
+
+    /**
+     * Directory holding <tt>.packaged</tt> when it is not the workspace or the
+     * build directory, that is on a tmpfs; or null.
+     */
+    public String getStagingRoot() {
+        return stagingRoot;
+    }
+
+    /**
+     * Whether the staging tree is on a tmpfs and should be released as soon
+     * as the package is built.
+     */
+    public boolean isInMemory() {
+        return inMemory;
+    }
+
+    public void setIsolation(String buildDir, String stagingRoot, boolean inMemory) {
+        this.buildDir = buildDir;
+        this.stagingRoot = stagingRoot;
+        this.inMemory = inMemory;
+    }
+
+    /**
+     * Location of the {@link RepositoryIndex} that reserved
+     * {@link #getReservedVersion}.
+     */
+    public String getIndexLocation() {
+        return indexLocation;
+    }
+
+    public String getReservedPackage() {
+        return reservedPackage;
+    }
+
+    /**
+     * The version {@link RepositoryIndex#nextVersion} handed out to this
+     * build, or null.
+     */
+    public String getReservedVersion() {
+        return reservedVersion;
+    }
+
+    public void setReservation(String indexLocation, String pkg, String version) {
+        this.indexLocation = indexLocation;
+        this.reservedPackage = pkg;
+        this.reservedVersion = version;
+    }
+
+    /**
+     * The package file of the build, relative to the workspace, as exported
+     * in <tt>DEB_PKG_FILE</tt>.
+     */
+    static String packageFile(EnvVars env) {
+        return env.get("DEB_PKG_FILE", PACKAGE_FILE);
+    }
+
+    /**
+     * The staging tree of the build, as exported in <tt>DEB_PKG_STAGING</tt>.
+     */
+    static FilePath stagingDir(EnvVars env, FilePath workspace) {
+        String staging = env.get("DEB_PKG_STAGING");
+        return staging == null ? workspace.child(".packaged") : new FilePath(workspace
+                .getChannel(), staging);
+    }
+
+    /**
+     * The delta next to <tt>packageFile</tt>.
+     */
+    static String deltaFile(String packageFile) {
+        return packageFile.replaceAll("\\.deb$", "") + ".debdelta";
+    }
+}
@@ -5,20 +5,37 @@ import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
+import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.ParametersAction;
+import hudson.model.Project;
+import hudson.model.Result;
 import hudson.model.StringParameterValue;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 
+import net.sf.json.JSONObject;
+
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
@@ -51,11 +68,22 @@ public class DebPackagerBuilder extends Builder {
     private final DebScript postinst;
     private final DebScript prerm;
     private final DebScript postrm;
+    private final boolean streamPackage;
+    private final boolean incrementalStaging;
+    private final boolean incrementalChecksums;
+    private final DebCompression compression;
+    private final boolean backgroundCleanup;
+    private final PackageCache packageCache;
+    private final ReproducibleOutput reproducible;
+    private final IsolatedStaging isolatedStaging;
 
     @DataBoundConstructor
     public DebPackagerBuilder(String packageName, String versionFormat, List<CopyPath> copyToPaths,
             String dependencies, String maintainer, DebScript preinst, DebScript postinst,
-            DebScript prerm, DebScript postrm) {
+            DebScript prerm, DebScript postrm, boolean streamPackage, boolean incrementalStaging,
+            boolean incrementalChecksums, DebCompression compression, boolean backgroundCleanup,
+            PackageCache packageCache, ReproducibleOutput reproducible,
+            IsolatedStaging isolatedStaging) {
         this.packageName = packageName;
         this.versionFormat = versionFormat;
         this.copyToPaths = copyToPaths;
@@ -65,6 +93,14 @@ public class DebPackagerBuilder extends Builder {
         this.postinst = postinst;
         this.prerm = prerm;
         this.postrm = postrm;
+        this.streamPackage = streamPackage;
+        this.incrementalStaging = incrementalStaging;
+        this.incrementalChecksums = incrementalChecksums;
+        this.compression = compression;
+        this.backgroundCleanup = backgroundCleanup;
+        this.packageCache = packageCache;
+        this.reproducible = reproducible;
+        this.isolatedStaging = isolatedStaging;
     }
 
     public String getPackageName() {
@@ -103,6 +139,38 @@ public class DebPackagerBuilder extends Builder {
         return postrm;
     }
 
+    public boolean isStreamPackage() {
+        return streamPackage;
+    }
+
+    public boolean isIncrementalStaging() {
+        return incrementalStaging;
+    }
+
+    public boolean isIncrementalChecksums() {
+        return incrementalChecksums;
+    }
+
+    public DebCompression getCompression() {
+        return compression;
+    }
+
+    public boolean isBackgroundCleanup() {
+        return backgroundCleanup;
+    }
+
+    public PackageCache getPackageCache() {
+        return packageCache;
+    }
+
+    public ReproducibleOutput getReproducible() {
+        return reproducible;
+    }
+
+    public IsolatedStaging getIsolatedStaging() {
+        return isolatedStaging;
+    }
+
     private String getParameterString(String original, AbstractBuild<?, ?> build,
             BuildListener listener) {
         ParametersAction parameters = build.getAction(ParametersAction.class);
@@ -118,73 +186,111 @@ public class DebPackagerBuilder extends Builder {
         return original;
     }
 
+    /** Step name timings are recorded under. */
+    static final String STEP = "Structure";
+
+    /** Build artifact listing every staged file with its MD5. */
+    static final String FILE_LIST = "packaged-files.md5sums.gz";
+
+    @Override
+    public Collection<? extends Action> getProjectActions(AbstractProject<?, ?> project) {
+        return Collections.singleton(new PackagingTrendAction(project));
+    }
+
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
         listener.getLogger().println("Deb Packager - starting to structure package...");
         listener.getLogger().println(this);
         try {
             FilePath workspace = build.getWorkspace();
+            DebPackageAction action = new DebPackageAction();
+            build.addAction(action);
             String packageNameSub = getParameterString(packageName, build, listener);
-            String version = getParameterString(versionFormat, build, listener).replace("_", "-");
+            String version = getParameterString(versionFormat, build, listener);
+            if (version.contains(RepositoryIndex.NEXT_VERSION)) {
+                version = getDescriptor().nextVersion(packageNameSub, version);
+                action.setReservation(getDescriptor().getIndexLocation(), packageNameSub,
+                        version);
+                listener.getLogger().println("Next version of " + packageNameSub + " is "
+                        + version);
+            }
+            version = version.replace("_", "-");
             String dependenciesSub = getParameterString(dependencies, build, listener);
             String debPkgName = packageNameSub + "_" + version;
-
-            // 1a. create folder to house package ("workspace/.packaged")
-            FilePath packagePath = workspace.child(".packaged");
-            if (packagePath.exists()) {
-                FilePathUtils.sudoDeleteRecursive(packagePath);
+            EnvVars env = build.getEnvironment(listener);
+
+            EnvVars controlEnv = env;
+            if (reproducible != null) {
+                controlEnv = reproducible.filter(env);
+                action.setSourceDateEpoch(reproducible.sourceDateEpoch(env));
+                listener.getLogger().println(
+                        "Reproducible output, SOURCE_DATE_EPOCH=" + action.getSourceDateEpoch());
             }
-            packagePath.mkdirs();
-
-            // 1b. remove old .packaged.deb file if we have one
-            FilePath oldPackageFile = workspace.child(".packaged.deb");
-            if (oldPackageFile.exists()) {
-                oldPackageFile.delete();
+            PackagingTimingAction timings = PackagingTimingAction.of(build);
+
+            // with isolated staging everything goes into a directory of this build
+            String buildDir = null;
+            String packageFile = DebPackageAction.PACKAGE_FILE;
+            if (isolatedStaging != null) {
+                buildDir = IsolatedStaging.buildDir(env);
+                packageFile = buildDir + "/" + DebPackageAction.PACKAGE_FILE;
+                workspace.child(buildDir).mkdirs();
+                action.setIsolation(buildDir, null, false);
             }
 
-            // 1c. create the "moveToPath" directory(s)
-            if (copyToPaths != null) {
-                for (CopyPath cpPath : copyToPaths) {
-                    listener.getLogger().println(cpPath.toString());
-                    cpPath.copy(workspace, packagePath, listener);
+            // 0. reuse a cached package if none of the inputs changed
+            String cacheKey = null;
+            if (packageCache != null) {
+                long start = System.nanoTime();
+                cacheKey = PackageCache.fingerprint(workspace, copyToPaths, fingerprintHeader(
+                        build, workspace, packageNameSub, version, dependenciesSub, env));
+                boolean hit = packageCache.fetch(workspace, cacheKey, packageFile);
+                timings.record(STEP, "cache lookup", start);
+                if (hit) {
+                    listener.getLogger().println(
+                            "Reusing cached package for unchanged inputs " + cacheKey);
+                    action.setPrebuilt(true);
+                } else {
+                    action.setCache(packageCache, cacheKey);
                 }
             }
 
-            // 2. make the debian directory
-            FilePath debianPath = packagePath.child("DEBIAN");
-            debianPath.mkdirs();
-
-            // 3. make control file
-            FilePath controlFile = debianPath.child("control");
-            controlFile.write(
-                    makeControlFile(debianPath, packageNameSub, version, dependenciesSub,
-                            maintainer, build.getEnvironment(listener)), "UTF-8");
-
-            // 4. save postinst, preinst, postrm, prerm to files
-            if (preinst != null) {
-                preinst.create("preinst", debianPath, workspace);
-            }
-            if (postinst != null) {
-                postinst.create("postinst", debianPath, workspace);
-            }
-            if (prerm != null) {
-                prerm.create("prerm", debianPath, workspace);
+            String cleanup = null;
+            FilePath root = workspace;
+            if (buildDir != null) {
+                root = workspace.child(buildDir);
+                if (!action.isPrebuilt() && !streamPackage) {
+                    root = isolatedStaging.stagingRoot(workspace, buildDir, copyToPaths,
+                            listener.getLogger());
+                    if (!root.getRemote().equals(workspace.child(buildDir).getRemote())) {
+                        action.setIsolation(buildDir, root.getRemote(), true);
+                    }
+                }
             }
-            if (postrm != null) {
-                postrm.create("postrm", debianPath, workspace);
+            if (!action.isPrebuilt()) {
+                cleanup = structure(build, listener, workspace, root, packageFile, action,
+                        timings, packageNameSub, version, dependenciesSub, controlEnv);
             }
 
-            // 5 chown packagePath
-            FilePathUtils.chown(packagePath, "root", "root");
-
-            // 6. set DEB_PKG_NAME env var
+            // 6. set DEB_PKG_NAME env var, and where the package and its staging tree are
             // build.getEnvironment(listener).put("DEB_PKG_NAME", debPkgName);
+            long start = System.nanoTime();
             build.addAction(new ParametersAction(new StringParameterValue("DEB_PKG_NAME",
-                    debPkgName)));
+                    debPkgName), new StringParameterValue("DEB_PKG_FILE", packageFile),
+                    new StringParameterValue("DEB_PKG_STAGING", root.child(".packaged")
+                            .getRemote())));
+            timings.record(STEP, "env export", start);
 
             // new Shell("export DEB_PKG_NAME=" + debPkgName).perform(build,
             // launcher, listener);
 
+            if (cleanup != null) {
+                start = System.nanoTime();
+                FilePathUtils.awaitDelete(workspace.child(".packaged"), cleanup, listener);
+                timings.record(STEP, "cleanup wait", start);
+            }
+
+            listener.getLogger().println(timings.summary(STEP));
             listener.getLogger().println("Deb Packager - finished");
         } catch (Exception e) {
             e.printStackTrace(listener.getLogger());
@@ -194,8 +300,217 @@ public class DebPackagerBuilder extends Builder {
         return true;
     }
 
-    private String makeControlFile(FilePath debianDir, String packageNameSub, String version,
-            String dependenciesSub, String maintainer, EnvVars env) {
+    /**
+     * Stages (or streams) the package. The staging tree goes into
+     * <tt>root</tt>, the workspace unless staging is isolated.
+     *
+     * @return handle of a background cleanup to wait for, or null
+     */
+    private String structure(AbstractBuild<?, ?> build, BuildListener listener,
+            FilePath workspace, FilePath root, String packageFile, DebPackageAction action,
+            PackagingTimingAction timings, String packageNameSub, String version,
+            String dependenciesSub, EnvVars env) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        // 1a. remove the previous staging folder ("workspace/.packaged"),
+        // unless it can be updated in place; an isolated one is always new
+        FilePath packagePath = root.child(".packaged");
+        FilePath manifest = workspace.child(".packaged.manifest");
+        boolean incremental = incrementalStaging && !streamPackage && isolatedStaging == null
+                && manifest.exists() && packagePath.exists();
+        String cleanup = null;
+        if (incremental) {
+            listener.getLogger().println("Reusing .packaged from the previous build");
+        } else if (isolatedStaging == null) {
+            if (backgroundCleanup) {
+                cleanup = FilePathUtils.deleteInBackground(packagePath);
+            } else if (packagePath.exists()) {
+                FilePathUtils.sudoDeleteRecursive(packagePath);
+            }
+            manifest.delete();
+        }
+
+        // 1b. remove old .packaged.deb file if we have one
+        FilePath oldPackageFile = workspace.child(packageFile);
+        if (oldPackageFile.exists()) {
+            oldPackageFile.delete();
+        }
+        timings.record(STEP, "clean", start);
+
+        if (streamPackage) {
+            // write .packaged.deb straight from the copy rules, no staging
+            LinkedHashMap<String, String> controlFiles = new LinkedHashMap<String, String>();
+            controlFiles.put("control", makeControlFile(null, packageNameSub, version,
+                    dependenciesSub, maintainer, -1, env));
+            addScript(controlFiles, "preinst", preinst, workspace);
+            addScript(controlFiles, "postinst", postinst, workspace);
+            addScript(controlFiles, "prerm", prerm, workspace);
+            addScript(controlFiles, "postrm", postrm, workspace);
+
+            listener.getLogger().println("Streaming package into " + packageFile);
+            start = System.nanoTime();
+            CopyResult streamed = DebArchiveWriter.streamPackage(workspace, packageFile,
+                    copyToPaths, controlFiles, compression, action.getSourceDateEpoch(),
+                    listener);
+            // the scan happens inside the stream; record it apart and the rest as stream
+            timings.add(STEP, "scan", streamed.getScanNanos() / 1000000, -1, -1);
+            timings.record(STEP, "stream", start + streamed.getScanNanos(),
+                    streamed.getFiles(), streamed.getBytes());
+            timings.recordRules(streamed);
+            action.setPrebuilt(true);
+            if (action.getCacheKey() != null) {
+                start = System.nanoTime();
+                packageCache.store(workspace, action.getCacheKey(), packageFile);
+                timings.record(STEP, "cache store", start);
+            }
+        } else {
+            stage(build, listener, workspace, timings, root, packagePath, packageNameSub,
+                    version, dependenciesSub, env);
+        }
+        return cleanup;
+    }
+
+    /**
+     * Everything apart from the payload files that ends up in the package, or
+     * decides how it is built, including the settings of the Dpkg steps that
+     * a cache hit skips. The environment listing in the description is left
+     * out, it changes with every build, unless reproducible output limits it
+     * to allow-listed variables; those and <tt>SOURCE_DATE_EPOCH</tt> are then
+     * part of the archive and go in.
+     */
+    private String fingerprintHeader(AbstractBuild<?, ?> build, FilePath workspace,
+            String packageNameSub, String version, String dependenciesSub, EnvVars env)
+            throws IOException {
+        StringBuilder sb = new StringBuilder(toString());
+        if (build.getProject() instanceof Project) {
+            for (Builder builder : ((Project<?, ?>) build.getProject()).getBuilders()) {
+                if (builder instanceof DpkgBuilder) {
+                    sb.append(builder).append('\n');
+                }
+            }
+        }
+        sb.append(packageNameSub).append('\n');
+        sb.append(version).append('\n');
+        sb.append(dependenciesSub).append('\n');
+        sb.append(env.get("JOB_NAME")).append('\n');
+        if (reproducible != null) {
+            sb.append("SOURCE_DATE_EPOCH=").append(reproducible.sourceDateEpoch(env))
+                    .append('\n');
+            for (Map.Entry<String, String> e : reproducible.filter(env).entrySet()) {
+                sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+            }
+        }
+        DebScript[] scripts = { preinst, postinst, prerm, postrm };
+        for (DebScript script : scripts) {
+            if (script != null && script.hasContents()) {
+                sb.append(script.getScriptContents(workspace)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private void stage(AbstractBuild<?, ?> build, BuildListener listener, FilePath workspace,
+            PackagingTimingAction timings, FilePath root, FilePath packagePath,
+            String packageNameSub, String version, String dependenciesSub, EnvVars env)
+            throws IOException, InterruptedException {
+        packagePath.mkdirs();
+
+        // 1c. create the "moveToPath" directory(s)
+        long start = System.nanoTime();
+        CopyResult staged = new CopyResult();
+        if (incrementalStaging && isolatedStaging == null) {
+            staged.merge(FilePathUtils.stageIncremental(workspace, copyToPaths, packagePath,
+                    ".packaged.manifest", incrementalChecksums, getDescriptor()
+                            .largeFileThresholdBytes(), listener), "");
+        } else {
+            staged.merge(FilePathUtils.copyAll(workspace, copyToPaths, packagePath,
+                    getDescriptor().largeFileThresholdBytes(), listener), "");
+        }
+        // the scan happens inside the copy; record it apart and the rest as copy
+        timings.add(STEP, "scan", staged.getScanNanos() / 1000000, -1, -1);
+        timings.record(STEP, "copy", start + staged.getScanNanos(), staged.getFiles(),
+                staged.getBytes());
+        timings.recordRules(staged);
+
+        // 2. make the debian directory
+        start = System.nanoTime();
+        FilePath debianPath = packagePath.child("DEBIAN");
+        if (debianPath.exists()) {
+            debianPath.deleteRecursive();
+        }
+        debianPath.mkdirs();
+
+        // 3. make control file and md5sums, both from what the copy computed
+        FilePath controlFile = debianPath.child("control");
+        controlFile.write(
+                makeControlFile(debianPath, packageNameSub, version, dependenciesSub,
+                        maintainer, staged.getInstalledSize(), env),
+                "UTF-8");
+        debianPath.child("md5sums").write(staged.formatMd5sums(), "UTF-8");
+        writeFileList(build, staged, listener);
+        timings.record(STEP, "control file", start);
+
+        // 4. save postinst, preinst, postrm, prerm to files
+        start = System.nanoTime();
+        if (preinst != null) {
+            preinst.create("preinst", debianPath, workspace);
+        }
+        if (postinst != null) {
+            postinst.create("postinst", debianPath, workspace);
+        }
+        if (prerm != null) {
+            prerm.create("prerm", debianPath, workspace);
+        }
+        if (postrm != null) {
+            postrm.create("postrm", debianPath, workspace);
+        }
+        timings.record(STEP, "maintainer scripts", start);
+
+        // 5. record ownership for the Dpkg step instead of chowning the tree;
+        // it goes into the archive headers, never onto the filesystem
+        start = System.nanoTime();
+        Map<String, String> owners = new LinkedHashMap<String, String>();
+        if (copyToPaths != null) {
+            for (CopyPath cpPath : copyToPaths) {
+                if (cpPath.getOwner() != null && cpPath.getOwner().trim().length() > 0) {
+                    owners.put(cpPath.getTo(), cpPath.getOwner());
+                }
+            }
+        }
+        root.child(".packaged.ownership").write(DebArchiveWriter.formatOwners(owners),
+                "UTF-8");
+        timings.record(STEP, "ownership", start);
+    }
+
+    /**
+     * Keeps the full list of staged files as a compressed build artifact;
+     * the log only shows a sample.
+     */
+    private static void writeFileList(AbstractBuild<?, ?> build, CopyResult staged,
+            BuildListener listener) throws IOException {
+        File artifacts = build.getArtifactsDir();
+        if (!artifacts.isDirectory() && !artifacts.mkdirs()) {
+            throw new IOException("Failed to create " + artifacts);
+        }
+        File list = new File(artifacts, FILE_LIST);
+        Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(list)),
+                "UTF-8");
+        try {
+            out.write(staged.formatMd5sums());
+        } finally {
+            out.close();
+        }
+        listener.getLogger().println("Full file list in artifact " + FILE_LIST);
+    }
+
+    private static void addScript(LinkedHashMap<String, String> controlFiles, String name,
+            DebScript script, FilePath workspace) throws IOException {
+        if (script != null && script.hasContents()) {
+            controlFiles.put(name, script.getScriptContents(workspace));
+        }
+    }
+
+    static String makeControlFile(FilePath debianDir, String packageNameSub, String version,
+            String dependenciesSub, String maintainer, long installedSize, EnvVars env) {
         StringBuilder sb = new StringBuilder();
         sb.append("Package:" + packageNameSub + "\n");
         sb.append("Version: " + version + "\n");
@@ -206,6 +521,9 @@ public class DebPackagerBuilder extends Builder {
             sb.append("Depends: " + dependenciesSub + "\n");
         }
         sb.append("Maintainer: " + maintainer + "\n");
+        if (installedSize >= 0) {
+            sb.append("Installed-Size: " + installedSize + "\n");
+        }
         sb.append("Description: " + env.get("JOB_NAME") + " (built by jenkins)\n");
         for (String key : env.keySet()) {
             sb.append(" " + key + " - " + env.get(key) + "\n");
@@ -224,6 +542,96 @@ public class DebPackagerBuilder extends Builder {
      */
     @Extension
     public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+        /** <tt>Packages</tt> or <tt>Packages.gz</tt> of the target repository. */
+        private String indexLocation;
+        /** Minutes before the index is reloaded. */
+        private String indexTtl;
+        /** MB from which staged files are copied without heap buffers. */
+        private String largeFileThreshold;
+
+        public DescriptorImpl() {
+            load();
+        }
+
+        public String getIndexLocation() {
+            return indexLocation;
+        }
+
+        public String getIndexTtl() {
+            return indexTtl;
+        }
+
+        public String getLargeFileThreshold() {
+            return largeFileThreshold;
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            indexLocation = Util.fixEmptyAndTrim(json.optString("indexLocation"));
+            indexTtl = Util.fixEmptyAndTrim(json.optString("indexTtl"));
+            largeFileThreshold = Util.fixEmptyAndTrim(json.optString("largeFileThreshold"));
+            save();
+            return true;
+        }
+
+        long indexTtlMillis() {
+            try {
+                return Long.parseLong(indexTtl.trim()) * 60 * 1000;
+            } catch (RuntimeException e) {
+                return 5 * 60 * 1000;
+            }
+        }
+
+        long largeFileThresholdBytes() {
+            try {
+                return Long.parseLong(largeFileThreshold.trim()) * 1024 * 1024;
+            } catch (RuntimeException e) {
+                return LargeFiles.THRESHOLD;
+            }
+        }
+
+        /**
+         * The repository index, or null if none is configured.
+         */
+        RepositoryIndex index() {
+            return indexLocation == null ? null : RepositoryIndex.get(indexLocation);
+        }
+
+        /**
+         * Resolves {@link RepositoryIndex#NEXT_VERSION} in <tt>version</tt>
+         * against a fresh index.
+         */
+        String nextVersion(String pkg, String version) throws IOException {
+            RepositoryIndex index = index();
+            if (index == null) {
+                throw new IOException(RepositoryIndex.NEXT_VERSION
+                        + " needs a repository index in the global configuration");
+            }
+            return index.nextVersion(pkg, version, indexTtlMillis());
+        }
+
+        public FormValidation doCheckDependencies(@QueryParameter String value) {
+            RepositoryIndex index = index();
+            if (index == null || Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.ok();
+            }
+            try {
+                List<String> problems = index.check(value, indexTtlMillis());
+                if (problems.isEmpty()) {
+                    return FormValidation.ok();
+                }
+                StringBuilder sb = new StringBuilder();
+                for (String problem : problems) {
+                    sb.append(Util.escape(problem)).append("<br>");
+                }
+                return FormValidation.warningWithMarkup(sb.toString());
+            } catch (IOException e) {
+                return FormValidation.warning("Cannot read the repository index: "
+                        + e.getMessage());
+            }
+        }
+
         public FormValidation doCheckPackageName(@QueryParameter String value) throws IOException,
                 ServletException {
             if (value.length() == 0)
@@ -235,9 +643,20 @@ public class DebPackagerBuilder extends Builder {
                 throws IOException, ServletException {
             if (value.length() == 0)
                 return FormValidation.error("Please set a version format");
+            if (value.contains(RepositoryIndex.NEXT_VERSION) && index() == null)
+                return FormValidation.error(RepositoryIndex.NEXT_VERSION
+                        + " needs a repository index in the global configuration");
             return FormValidation.ok();
         }
 
+        public ListBoxModel doFillStagingModeItems() {
+            ListBoxModel items = new ListBoxModel();
+            for (StagingMode mode : StagingMode.values()) {
+                items.add(mode.getDisplayName(), mode.name());
+            }
+            return items;
+        }
+
         @SuppressWarnings("rawtypes")
         public boolean isApplicable(Class<? extends AbstractProject> aClass) {
             return true;
@@ -248,6 +667,52 @@ public class DebPackagerBuilder extends Builder {
         }
     }
 
+    /**
+     * Gives back the version {@link RepositoryIndex#nextVersion} reserved for
+     * a build that failed or was aborted, so the next build gets the same
+     * number instead of skipping it. A version a repo step published, or is
+     * still publishing in the background, stays taken.
+     */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static class ReleaseVersion extends RunListener<AbstractBuild> {
+
+        public ReleaseVersion() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            DebPackageAction action = build.getAction(DebPackageAction.class);
+            Result result = build.getResult();
+            if (action == null || action.getReservedVersion() == null || result == null
+                    || !result.isWorseThan(Result.UNSTABLE)) {
+                return;
+            }
+            PublishStatusAction status = build.getAction(PublishStatusAction.class);
+            if (status != null) {
+                for (PublishStatusAction.Step step : status.getSteps()) {
+                    if (!step.getStatus().equals(PublishStatusAction.FAILED)) {
+                        return;
+                    }
+                }
+            }
+            String pkg = action.getReservedPackage();
+            String version = action.getReservedVersion();
+            RepositoryIndex index = RepositoryIndex.get(action.getIndexLocation());
+            try {
+                // a repo step may have published it before the build failed
+                index.refresh(0);
+            } catch (IOException e) {
+                listener.getLogger().println("Keeping " + pkg + " " + version
+                        + " reserved, cannot read the repository index: " + e);
+                return;
+            }
+            index.release(pkg, version);
+            listener.getLogger().println("Released version " + version + " of " + pkg);
+        }
+    }
+
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("packageName = " + packageName + "\n");
@@ -259,6 +724,14 @@ public class DebPackagerBuilder extends Builder {
         sb.append("postinst = " + postinst + "\n");
         sb.append("prerm = " + prerm + "\n");
         sb.append("postrm = " + postrm + "\n");
+        sb.append("streamPackage = " + streamPackage + "\n");
+        sb.append("incrementalStaging = " + incrementalStaging + "\n");
+        sb.append("incrementalChecksums = " + incrementalChecksums + "\n");
+        sb.append("compression = " + compression + "\n");
+        sb.append("backgroundCleanup = " + backgroundCleanup + "\n");
+        sb.append("packageCache = " + packageCache + "\n");
+        sb.append("reproducible = " + reproducible + "\n");
+        sb.append("isolatedStaging = " + isolatedStaging + "\n");
         return sb.toString();
     }
 }
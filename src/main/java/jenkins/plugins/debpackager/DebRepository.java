@@ -0,0 +1,571 @@
+package jenkins.plugins.debpackager;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.BuildListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A flat Debian repository (<tt>pool/</tt> and <tt>dists/</tt>) on the node
+ * running the build. Indices are updated incrementally: only the added
+ * package is read, and its stanza is merged into the existing
+ * <tt>Packages</tt> file. Index updates go through a {@link PublishQueue},
+ * and every update rewrites the distribution's {@link ReleaseFile}.
+ *
+ * <p>
+ * Package contents are stored once, under their SHA256 in
+ * <tt>pool/.objects/</tt>; the usual pool paths are hardlinks to them. With
+ * a retention limit, each update drops all but the newest versions of every
+ * package from the index, and a background collection then removes pool
+ * files no index refers to anymore.
+ */
+class DebRepository {
+
+    private static final Logger LOGGER = Logger.getLogger(DebRepository.class.getName());
+
+    static final String LOCK = "/var/run/jenkins/debpackager";
+
+    static final String OBJECTS = "pool/.objects";
+
+    /**
+     * Minutes an unreferenced pool file is kept, so packages copied into the
+     * pool but not yet indexed are never collected.
+     */
+    static final long GRACE = Long.getLong(DebRepository.class.getName() + ".grace", 60);
+
+    private static final ExecutorService COLLECTOR = Executors
+            .newSingleThreadExecutor(new DaemonThreadFactory());
+
+    private final File base;
+    private final PrintStream log;
+    private Process lockToucher;
+
+    DebRepository(File base, PrintStream log) {
+        this.base = base;
+        this.log = log;
+    }
+
+    /**
+     * Publishes <tt>packageFile</tt> from the workspace as
+     * <tt>debName</tt>.deb into <tt>distribution</tt>, returning once the
+     * index lists it. <tt>node</tt> names the node holding the workspace. If
+     * <tt>deltaName</tt> is given, the delta is put next to the package. The
+     * <tt>Release</tt> file is signed with <tt>signingKey</tt> unless that is
+     * null. Only the newest <tt>keepVersions</tt> versions of each package
+     * stay in the index, all of them if it is 0.
+     */
+    @SuppressWarnings("serial")
+    static boolean publish(String node, FilePath workspace, final String packageFile,
+            final String repoBase, String distribution, final String debName,
+            final String deltaName, String signingKey, int keepVersions,
+            final BuildListener listener) throws IOException, InterruptedException {
+        Map<String, String> stanza = workspace.act(new FileCallable<Map<String, String>>() {
+            public Map<String, String> invoke(File f, VirtualChannel channel)
+                    throws IOException, InterruptedException {
+                DebRepository repo = new DebRepository(new File(repoBase), listener.getLogger());
+                if (deltaName != null) {
+                    repo.addDelta(new File(f, DebPackageAction.deltaFile(packageFile)),
+                            debName, deltaName);
+                }
+                return repo.addToPool(new File(f, packageFile), debName);
+            }
+        });
+
+        listener.getLogger().println("Waiting for the " + distribution + " index");
+        Future<String> published = IndexQueue.get(node, repoBase, distribution).submit(
+                new Addition(stanza, signingKey, keepVersions));
+        try {
+            listener.getLogger().println(published.get());
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to update the " + distribution + " index", e.getCause());
+        }
+        return true;
+    }
+
+    /**
+     * A package to merge into an index, with the settings of the build that
+     * published it.
+     */
+    static final class Addition implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final Map<String, String> stanza;
+        final String signingKey;
+        final int keepVersions;
+
+        Addition(Map<String, String> stanza, String signingKey, int keepVersions) {
+            this.stanza = stanza;
+            this.signingKey = signingKey;
+            this.keepVersions = keepVersions;
+        }
+    }
+
+    /**
+     * Merges pool packages into one distribution's index, one batch at a
+     * time. The repository is looked up on its node for every batch, so a
+     * reconnected node is reached through its new channel.
+     */
+    static final class IndexQueue extends PublishQueue<Addition> {
+
+        private static final Map<String, IndexQueue> QUEUES = new HashMap<String, IndexQueue>();
+
+        private final String node;
+        private final String repoBase;
+        private final String distribution;
+        private boolean collecting;
+
+        private IndexQueue(String node, String repoBase, String distribution) {
+            this.node = node;
+            this.repoBase = repoBase;
+            this.distribution = distribution;
+        }
+
+        /**
+         * The queue for <tt>distribution</tt> of the repository at
+         * <tt>repoBase</tt> on <tt>node</tt>.
+         */
+        static synchronized IndexQueue get(String node, String repoBase, String distribution) {
+            String key = node + ":" + repoBase + ":" + distribution;
+            IndexQueue queue = QUEUES.get(key);
+            if (queue == null) {
+                queue = new IndexQueue(node, repoBase, distribution);
+                QUEUES.put(key, queue);
+            }
+            return queue;
+        }
+
+        @SuppressWarnings("serial")
+        @Override
+        protected String publish(final List<Addition> batch) throws IOException,
+                InterruptedException {
+            final String distribution = this.distribution;
+            String summary = resolve(node, repoBase).act(new FileCallable<String>() {
+                public String invoke(File f, VirtualChannel channel) throws IOException,
+                        InterruptedException {
+                    ByteArrayOutputStream log = new ByteArrayOutputStream();
+                    DebRepository repo = new DebRepository(f, new PrintStream(log, true));
+                    repo.lock();
+                    try {
+                        repo.updateIndex(distribution, batch);
+                    } finally {
+                        repo.unlock();
+                    }
+                    return log.toString().trim();
+                }
+            });
+            for (Addition addition : batch) {
+                if (addition.keepVersions > 0) {
+                    collectInBackground();
+                    break;
+                }
+            }
+            return summary;
+        }
+
+        /**
+         * Removes what the retention dropped from the pool, off the publish
+         * path. At most one collection per queue is pending.
+         */
+        private synchronized void collectInBackground() {
+            if (collecting) {
+                return;
+            }
+            collecting = true;
+            COLLECTOR.submit(new Runnable() {
+                @SuppressWarnings("serial")
+                public void run() {
+                    try {
+                        LOGGER.info(resolve(node, repoBase).act(new FileCallable<String>() {
+                            public String invoke(File f, VirtualChannel channel)
+                                    throws IOException, InterruptedException {
+                                ByteArrayOutputStream log = new ByteArrayOutputStream();
+                                DebRepository repo = new DebRepository(f, new PrintStream(log,
+                                        true));
+                                repo.lock();
+                                try {
+                                    repo.collectGarbage(GRACE * 60 * 1000);
+                                } finally {
+                                    repo.unlock();
+                                }
+                                return log.toString().trim();
+                            }
+                        }));
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Failed to collect the pool of " + repoBase
+                                + " on " + node, e);
+                    } finally {
+                        synchronized (IndexQueue.this) {
+                            collecting = false;
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    void lock() throws IOException, InterruptedException {
+        Process p = new ProcessBuilder("lockfile-create", "-v", "--retry", "10", LOCK)
+                .redirectErrorStream(true).start();
+        String output = IOUtils.toString(p.getInputStream());
+        if (p.waitFor() != 0) {
+            throw new IOException("Cannot acquire lock " + LOCK + ": " + output.trim());
+        }
+        lockToucher = new ProcessBuilder("lockfile-touch", LOCK).start();
+    }
+
+    void unlock() throws IOException, InterruptedException {
+        if (lockToucher != null) {
+            lockToucher.destroy();
+            lockToucher = null;
+        }
+        new ProcessBuilder("lockfile-remove", LOCK).start().waitFor();
+    }
+
+    static String poolPath(String debName) {
+        String pkgName = debName.split("_")[0];
+        return "pool/main/" + pkgName.charAt(0) + "/" + pkgName + "/" + debName + ".deb";
+    }
+
+    File packagesFile(String distribution) {
+        return new File(base, "dists/" + distribution + "/main/binary-all/Packages");
+    }
+
+    File objectFile(String sha256) {
+        return new File(base, OBJECTS + "/" + sha256.substring(0, 2) + "/" + sha256 + ".deb");
+    }
+
+    /**
+     * Stores <tt>deb</tt> in the pool, unless identical contents are there
+     * already, links it as <tt>debName</tt> and returns its <tt>Packages</tt>
+     * stanza. Takes the repository lock while it touches the pool.
+     */
+    Map<String, String> addToPool(File deb, String debName) throws IOException,
+            InterruptedException {
+        String poolPath = poolPath(debName);
+        File target = new File(base, poolPath);
+        Map<String, String> stanza = stanza(deb, poolPath);
+        String sha256 = stanza.get("SHA256");
+        File object = objectFile(sha256);
+        // the collection removes objects under the lock, so reusing one must not interleave
+        lock();
+        try {
+            if (object.isFile()) {
+                log.println("Pool already holds " + sha256);
+                // links share the mtime, renew it so the collection waits for the index
+                FilePathUtils.sudo("touch", object.getAbsolutePath());
+            } else {
+                FilePathUtils.sudo("mkdir", "-p", object.getParent());
+                FilePathUtils.sudoInstall(deb, object);
+            }
+
+            if (target.isFile() && target.length() == object.length()
+                    && Digests.of(target).sha256.equals(sha256)) {
+                log.println(target + " is already up to date");
+            } else {
+                log.println("Adding " + debName + " to " + target);
+                String tmp = target.getAbsolutePath() + ".new";
+                FilePathUtils.sudo("mkdir", "-p", target.getParent());
+                FilePathUtils.sudo("ln", "-f", object.getAbsolutePath(), tmp);
+                FilePathUtils.sudo("mv", "-f", tmp, target.getAbsolutePath());
+            }
+        } finally {
+            unlock();
+        }
+        return stanza;
+    }
+
+    /**
+     * Copies <tt>delta</tt> into the pool directory of <tt>debName</tt>.
+     */
+    void addDelta(File delta, String debName, String deltaName) throws IOException,
+            InterruptedException {
+        File target = new File(new File(base, poolPath(debName)).getParentFile(), deltaName
+                + ".debdelta");
+        log.println("Adding " + deltaName + " to " + target);
+        FilePathUtils.sudo("mkdir", "-p", target.getParent());
+        FilePathUtils.sudo("cp", delta.getAbsolutePath(), target.getAbsolutePath());
+    }
+
+    static Map<String, String> stanza(File deb, String poolPath) throws IOException,
+            InterruptedException {
+        Map<String, String> control = DebControl.readControl(deb);
+        Digests digests = Digests.of(deb);
+
+        Map<String, String> stanza = new LinkedHashMap<String, String>();
+        String description = control.remove("Description");
+        stanza.putAll(control);
+        stanza.put("Filename", poolPath);
+        stanza.put("Size", String.valueOf(digests.size));
+        stanza.put("MD5sum", digests.md5);
+        stanza.put("SHA1", digests.sha1);
+        stanza.put("SHA256", digests.sha256);
+        if (description != null) {
+            stanza.put("Description", description);
+        }
+        return stanza;
+    }
+
+    /**
+     * Merges <tt>added</tt> into the distribution's <tt>Packages</tt>,
+     * replacing entries with the same name, version and architecture, and
+     * installs the new <tt>Packages</tt> and <tt>Packages.gz</tt> atomically,
+     * their by-hash copies first and the new <tt>Release</tt> last. With
+     * <tt>keepVersions</tt> above 0, older versions are dropped from the
+     * index in the same step.
+     */
+    void updateIndex(String distribution, List<Addition> batch) throws IOException,
+            InterruptedException {
+        List<Map<String, String>> added = new ArrayList<Map<String, String>>();
+        Map<String, Integer> limits = new HashMap<String, Integer>();
+        String signingKey = null;
+        for (Addition addition : batch) {
+            added.add(addition.stanza);
+            if (addition.keepVersions > 0) {
+                limits.put(packageKey(addition.stanza), addition.keepVersions);
+            }
+            signingKey = addition.signingKey;
+        }
+        File packages = packagesFile(distribution);
+        Collection<Map<String, String>> index = merge(DebControl.parse(packages), added);
+        if (!limits.isEmpty()) {
+            int before = index.size();
+            index = retain(index, limits);
+            if (index.size() < before) {
+                log.println("Dropped " + (before - index.size()) + " old version(s)");
+            }
+        }
+        byte[] content = format(index);
+
+        File tmp = File.createTempFile("Packages", "");
+        File tmpGz = File.createTempFile("Packages", ".gz");
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+            out = new GZIPOutputStream(new FileOutputStream(tmpGz));
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+            File dist = new File(base, "dists/" + distribution);
+            String path = packages.getPath().substring(dist.getPath().length() + 1);
+            Map<String, File> changed = new LinkedHashMap<String, File>();
+            changed.put(path, tmp);
+            changed.put(path + ".gz", tmpGz);
+            ReleaseFile release = new ReleaseFile(dist, distribution, log);
+            Map<String, Digests> hashes = release.hash(changed);
+            release.installByHash(changed, hashes);
+
+            FilePathUtils.sudo("mkdir", "-p", packages.getParent());
+            FilePathUtils.sudoInstall(tmpGz, new File(packages.getPath() + ".gz"));
+            FilePathUtils.sudoInstall(tmp, packages);
+            release.write(hashes, signingKey);
+            release.prune(hashes);
+        } finally {
+            tmp.delete();
+            tmpGz.delete();
+        }
+        log.println("Updated " + packages + " (" + index.size() + " package(s))");
+    }
+
+    /**
+     * Merges <tt>added</tt> into <tt>existing</tt>, the later stanza winning
+     * for the same name, version and architecture.
+     */
+    static Collection<Map<String, String>> merge(List<Map<String, String>> existing,
+            List<Map<String, String>> added) {
+        Map<String, Map<String, String>> index = new LinkedHashMap<String, Map<String, String>>();
+        for (Map<String, String> stanza : existing) {
+            index.put(key(stanza), stanza);
+        }
+        for (Map<String, String> stanza : added) {
+            index.put(key(stanza), stanza);
+        }
+        return index.values();
+    }
+
+    /**
+     * <tt>index</tt> without all but the newest versions of each package and
+     * architecture in <tt>limits</tt>, in the original order. <tt>limits</tt>
+     * maps {@link #packageKey} to the number of versions to keep; other
+     * packages are left alone.
+     */
+    static Collection<Map<String, String>> retain(Collection<Map<String, String>> index,
+            Map<String, Integer> limits) {
+        Map<String, List<String>> versions = new HashMap<String, List<String>>();
+        for (Map<String, String> stanza : index) {
+            String name = packageKey(stanza);
+            if (!limits.containsKey(name)) {
+                continue;
+            }
+            List<String> list = versions.get(name);
+            if (list == null) {
+                list = new ArrayList<String>();
+                versions.put(name, list);
+            }
+            list.add(stanza.get("Version"));
+        }
+        Set<String> dropped = new HashSet<String>();
+        for (Map.Entry<String, List<String>> e : versions.entrySet()) {
+            List<String> list = e.getValue();
+            int keep = limits.get(e.getKey());
+            if (list.size() > keep) {
+                Collections.sort(list, Collections.reverseOrder(DebVersion.COMPARATOR));
+                for (String version : list.subList(keep, list.size())) {
+                    dropped.add(e.getKey() + " " + version);
+                }
+            }
+        }
+        if (dropped.isEmpty()) {
+            return index;
+        }
+        List<Map<String, String>> retained = new ArrayList<Map<String, String>>();
+        for (Map<String, String> stanza : index) {
+            if (!dropped.contains(packageKey(stanza) + " " + stanza.get("Version"))) {
+                retained.add(stanza);
+            }
+        }
+        return retained;
+    }
+
+    /**
+     * Name and architecture of the package <tt>stanza</tt> describes.
+     */
+    static String packageKey(Map<String, String> stanza) {
+        return stanza.get("Package") + " " + stanza.get("Architecture");
+    }
+
+    /**
+     * Removes pool files, stored contents and deltas that no
+     * <tt>Packages</tt> index of any distribution refers to, once they are
+     * older than <tt>graceMillis</tt>.
+     */
+    void collectGarbage(long graceMillis) throws IOException, InterruptedException {
+        Set<String> filenames = new HashSet<String>();
+        Set<String> hashes = new HashSet<String>();
+        List<File> indices = new ArrayList<File>();
+        findIndices(new File(base, "dists"), indices);
+        for (File index : indices) {
+            for (Map<String, String> stanza : DebControl.parse(index)) {
+                filenames.add(stanza.get("Filename"));
+                hashes.add(stanza.get("SHA256"));
+            }
+        }
+
+        long cutoff = System.currentTimeMillis() - graceMillis;
+        List<String> stale = new ArrayList<String>();
+        List<String> files = new ArrayList<String>();
+        listPool(new File(base, "pool"), "pool/", files);
+        for (String path : files) {
+            File file = new File(base, path);
+            if (file.lastModified() > cutoff) {
+                continue;
+            }
+            String name = file.getName();
+            if (path.startsWith(OBJECTS + "/")) {
+                if (!hashes.contains(name.replaceAll("\\.deb$", ""))) {
+                    stale.add(file.getAbsolutePath());
+                }
+            } else if (name.endsWith(".debdelta")) {
+                // package_old_new_arch, kept while the package it leads to is
+                String[] parts = name.substring(0, name.length() - ".debdelta".length()).split(
+                        "_");
+                String target = parts.length < 3 ? null : path.substring(0, path.length()
+                        - name.length()) + parts[0] + "_" + parts[2].replace("%3a", ":") + ".deb";
+                if (target == null || !filenames.contains(target)) {
+                    stale.add(file.getAbsolutePath());
+                }
+            } else if (name.endsWith(".deb") && !filenames.contains(path)) {
+                stale.add(file.getAbsolutePath());
+            }
+        }
+
+        for (int i = 0; i < stale.size(); i += 200) {
+            List<String> rm = new ArrayList<String>();
+            rm.add("rm");
+            rm.add("-f");
+            rm.addAll(stale.subList(i, Math.min(i + 200, stale.size())));
+            FilePathUtils.sudo(rm.toArray(new String[rm.size()]));
+        }
+        log.println("Collected " + stale.size() + " unreferenced pool file(s) of " + base);
+    }
+
+    private static void findIndices(File dir, List<File> indices) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                if (!child.getName().equals("by-hash")) {
+                    findIndices(child, indices);
+                }
+            } else if (child.getName().equals("Packages")) {
+                indices.add(child);
+            }
+        }
+    }
+
+    private static void listPool(File dir, String prefix, List<String> files) {
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            File child = new File(dir, name);
+            if (child.isDirectory()) {
+                listPool(child, prefix + name + "/", files);
+            } else {
+                files.add(prefix + name);
+            }
+        }
+    }
+
+    /**
+     * Contents of a <tt>Packages</tt> file listing <tt>stanzas</tt>.
+     */
+    static byte[] format(Collection<Map<String, String>> stanzas) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map<String, String> stanza : stanzas) {
+            DebControl.format(stanza, sb);
+            sb.append('\n');
+        }
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    private static String key(Map<String, String> stanza) {
+        return stanza.get("Package") + " " + stanza.get("Version") + " "
+                + stanza.get("Architecture");
+    }
+}
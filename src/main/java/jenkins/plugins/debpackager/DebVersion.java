@@ -0,0 +1,129 @@
+package jenkins.plugins.debpackager;
+
+import java.util.Comparator;
+
+/**
+ * Debian version ordering, as <tt>dpkg --compare-versions</tt> does it:
+ * epoch, then upstream version, then revision. Within the last two, runs of
+ * non-digits compare character by character with letters before other
+ * characters and <tt>~</tt> before everything, even the end of the string;
+ * runs of digits compare numerically.
+ */
+class DebVersion {
+
+    static final Comparator<String> COMPARATOR = new Comparator<String>() {
+        public int compare(String a, String b) {
+            return DebVersion.compare(a, b);
+        }
+    };
+
+    static int compare(String a, String b) {
+        long epochA = epoch(a);
+        long epochB = epoch(b);
+        if (epochA != epochB) {
+            return epochA < epochB ? -1 : 1;
+        }
+        a = stripEpoch(a);
+        b = stripEpoch(b);
+        int dashA = a.lastIndexOf('-');
+        int dashB = b.lastIndexOf('-');
+        int c = compareFragment(dashA < 0 ? a : a.substring(0, dashA), dashB < 0 ? b : b
+                .substring(0, dashB));
+        if (c != 0) {
+            return c;
+        }
+        return compareFragment(dashA < 0 ? "" : a.substring(dashA + 1), dashB < 0 ? "" : b
+                .substring(dashB + 1));
+    }
+
+    private static long epoch(String version) {
+        int colon = version.indexOf(':');
+        if (colon < 0) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(version.substring(0, colon));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String stripEpoch(String version) {
+        int colon = version.indexOf(':');
+        return colon < 0 ? version : version.substring(colon + 1);
+    }
+
+    private static int compareFragment(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() || j < b.length()) {
+            // non-digit prefix
+            while ((i < a.length() && !Character.isDigit(a.charAt(i)))
+                    || (j < b.length() && !Character.isDigit(b.charAt(j)))) {
+                int oa = i < a.length() && !Character.isDigit(a.charAt(i)) ? order(a.charAt(i))
+                        : 0;
+                int ob = j < b.length() && !Character.isDigit(b.charAt(j)) ? order(b.charAt(j))
+                        : 0;
+                if (oa != ob) {
+                    return oa < ob ? -1 : 1;
+                }
+                i++;
+                j++;
+            }
+            // digit run, compared without parsing so any length works
+            while (i < a.length() && a.charAt(i) == '0') {
+                i++;
+            }
+            while (j < b.length() && b.charAt(j) == '0') {
+                j++;
+            }
+            int startA = i;
+            int startB = j;
+            while (i < a.length() && Character.isDigit(a.charAt(i))) {
+                i++;
+            }
+            while (j < b.length() && Character.isDigit(b.charAt(j))) {
+                j++;
+            }
+            if (i - startA != j - startB) {
+                return i - startA < j - startB ? -1 : 1;
+            }
+            int c = a.substring(startA, i).compareTo(b.substring(startB, j));
+            if (c != 0) {
+                return c < 0 ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private static int order(char c) {
+        if (c == '~') {
+            return -1;
+        }
+        if (Character.isLetter(c)) {
+            return c;
+        }
+        return c + 256;
+    }
+
+    /**
+     * Whether <tt>version</tt> satisfies the relation <tt>op</tt> (one of
+     * <tt>&lt;&lt; &lt;= = &gt;= &gt;&gt;</tt>, or the obsolete
+     * <tt>&lt;</tt> and <tt>&gt;</tt>) to <tt>wanted</tt>.
+     */
+    static boolean satisfies(String version, String op, String wanted) {
+        int c = compare(version, wanted);
+        if (op.equals("<<")) {
+            return c < 0;
+        } else if (op.equals("<=") || op.equals("<")) {
+            return c <= 0;
+        } else if (op.equals("=")) {
+            return c == 0;
+        } else if (op.equals(">=") || op.equals(">")) {
+            return c >= 0;
+        } else if (op.equals(">>")) {
+            return c > 0;
+        }
+        throw new IllegalArgumentException("Unknown relation " + op);
+    }
+}
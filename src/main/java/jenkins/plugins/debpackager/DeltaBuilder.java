@@ -0,0 +1,265 @@
+package jenkins.plugins.debpackager;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.BuildListener;
+import hudson.model.ParametersAction;
+import hudson.model.StringParameterValue;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Builds a <tt>debdelta</tt> patch from the previous version of the package
+ * to the one just built. The node keeps the last package built for every
+ * name and architecture as the base for the next delta
+ * (<tt>&lt;directory&gt;/&lt;package&gt;/&lt;arch&gt;/base.deb</tt>, with its
+ * SHA256 next to it), whether or not that package was published; a delta
+ * from an unpublished base is named after a version no host has and simply
+ * goes unused. Builds of the same package on a node take turns on its base
+ * directory. The delta is written next to the package, as
+ * <tt>.packaged.debdelta</tt> by default, and its name,
+ * <tt>package_old_new_arch</tt> as <tt>debdelta</tt> names them, is exported
+ * as <tt>DEB_DELTA_NAME</tt> for the repo builders.
+ */
+public class DeltaBuilder extends Builder {
+
+    /** Step name timings are recorded under. */
+    static final String STEP = "Delta";
+
+    /** Guards each base directory within this JVM; file locks are per process. */
+    private static final ConcurrentMap<String, Object> MONITORS =
+            new ConcurrentHashMap<String, Object>();
+
+    private final String directory;
+
+    @DataBoundConstructor
+    public DeltaBuilder(String directory) {
+        this.directory = directory;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    @SuppressWarnings("serial")
+    @Override
+    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher,
+            final BuildListener listener) {
+        listener.getLogger().println("Deb Packager - building delta...");
+        boolean result = false;
+        try {
+            FilePath workspace = build.getWorkspace();
+            PackagingTimingAction timings = PackagingTimingAction.of(build);
+            long start = System.nanoTime();
+            final String root = Util.fixEmptyAndTrim(directory);
+            final String packageFile = DebPackageAction.packageFile(build
+                    .getEnvironment(listener));
+            final String deltaFile = DebPackageAction.deltaFile(packageFile);
+            String deltaName = workspace.act(new FileCallable<String>() {
+                public String invoke(File f, VirtualChannel channel) throws IOException,
+                        InterruptedException {
+                    return makeDelta(new File(f, packageFile), new File(f, deltaFile),
+                            root == null ? new File(System.getProperty("user.home"),
+                            ".deb-packager/deltas") : new File(root), listener.getLogger());
+                }
+            });
+            if (deltaName != null) {
+                build.addAction(new ParametersAction(new StringParameterValue("DEB_DELTA_NAME",
+                        deltaName)));
+                listener.getLogger().println("DEB_DELTA_NAME=" + deltaName);
+                timings.record(STEP, "delta", start, 1, workspace.child(deltaFile).length());
+            } else {
+                timings.record(STEP, "delta", start);
+            }
+            listener.getLogger().println(timings.summary(STEP));
+            result = true;
+        } catch (Exception e) {
+            e.printStackTrace(listener.getLogger());
+        }
+
+        listener.getLogger().println("Deb Packager - finished delta");
+        return result;
+    }
+
+    /**
+     * Writes the delta from the stored base to <tt>deb</tt> and makes the
+     * package the next base. Returns the delta name, or null if there is no
+     * usable base or the delta is not worth publishing.
+     */
+    static String makeDelta(File deb, File delta, File root, PrintStream log)
+            throws IOException, InterruptedException {
+        delta.delete();
+
+        Map<String, String> control = DebControl.readControl(deb);
+        String pkg = control.get("Package");
+        String version = control.get("Version");
+        String arch = control.get("Architecture");
+        File dir = new File(root, pkg + "/" + arch);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+
+        // one build per package at a time, across executors and processes
+        Object monitor = monitor(dir);
+        synchronized (monitor) {
+            RandomAccessFile lockFile = new RandomAccessFile(new File(dir, ".lock"), "rw");
+            try {
+                FileLock lock = lockFile.getChannel().lock();
+                try {
+                    return makeDelta(deb, delta, pkg, version, arch, dir, log);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+            }
+        }
+    }
+
+    private static Object monitor(File dir) throws IOException {
+        String key = dir.getCanonicalPath();
+        Object monitor = new Object();
+        Object existing = MONITORS.putIfAbsent(key, monitor);
+        return existing != null ? existing : monitor;
+    }
+
+    private static String makeDelta(File deb, File delta, String pkg, String version,
+            String arch, File dir, PrintStream log) throws IOException, InterruptedException {
+        File base = new File(dir, "base.deb");
+        String deltaName = null;
+        String baseVersion = baseVersion(base, log);
+        if (baseVersion == null) {
+            log.println("No base for " + pkg + " " + arch + ", the next build gets a delta");
+        } else if (baseVersion.equals(version)) {
+            log.println("Base is already " + pkg + " " + version + ", no delta needed");
+        } else if (debdelta(base, deb, delta, log)) {
+            deltaName = pkg + "_" + escape(baseVersion) + "_" + escape(version) + "_" + arch;
+            log.println(String.format("Delta from %s: %d bytes, %.1f%% of the package",
+                    baseVersion, delta.length(), delta.length() * 100.0 / deb.length()));
+        } else {
+            delta.delete();
+        }
+
+        keepBase(deb, dir, base);
+        return deltaName;
+    }
+
+    /**
+     * Version of the stored base, or null if there is none. A base that does
+     * not match its checksum or cannot be read is discarded.
+     */
+    private static String baseVersion(File base, PrintStream log) throws InterruptedException {
+        File checksum = new File(base.getPath() + ".sha256");
+        if (!base.isFile()) {
+            return null;
+        }
+        try {
+            String expected = checksum.isFile() ? FileUtils.readFileToString(checksum).trim()
+                    : null;
+            if (!Digests.of(base).sha256.equals(expected)) {
+                throw new IOException("checksum mismatch");
+            }
+            return DebControl.readControl(base).get("Version");
+        } catch (IOException e) {
+            log.println("Discarding corrupt base " + base + ": " + e.getMessage());
+            base.delete();
+            checksum.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Runs <tt>debdelta</tt>. A missing tool, a failure or a delta no smaller
+     * than the package all just mean no delta.
+     */
+    private static boolean debdelta(File base, File deb, File delta, PrintStream log)
+            throws InterruptedException {
+        try {
+            Process p = new ProcessBuilder("debdelta", base.getAbsolutePath(),
+                    deb.getAbsolutePath(), delta.getAbsolutePath()).redirectErrorStream(true)
+                    .start();
+            p.getOutputStream().close();
+            String output = IOUtils.toString(p.getInputStream()).trim();
+            if (p.waitFor() != 0 || !delta.isFile()) {
+                log.println("debdelta did not produce a delta" + (output.length() == 0 ? ""
+                        : ": " + output));
+                return false;
+            }
+        } catch (IOException e) {
+            log.println("Cannot run debdelta: " + e.getMessage());
+            return false;
+        }
+        if (delta.length() >= deb.length()) {
+            log.println("Delta is not smaller than the package, skipping it");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the base with <tt>deb</tt>. The checksum is written last, so an
+     * interrupted update leaves a base that is discarded as corrupt.
+     */
+    private static void keepBase(File deb, File dir, File base) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File tmp = File.createTempFile("base", ".deb", dir);
+        try {
+            FileUtils.copyFile(deb, tmp);
+            String sha256 = Digests.of(tmp).sha256;
+            if (!tmp.renameTo(base)) {
+                base.delete();
+                if (!tmp.renameTo(base)) {
+                    throw new IOException("Cannot replace " + base);
+                }
+            }
+            FileUtils.writeStringToFile(new File(base.getPath() + ".sha256"), sha256 + "\n");
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Epochs are escaped in delta names, as <tt>debdelta</tt> does.
+     */
+    static String escape(String version) {
+        return version.replace(":", "%3a");
+    }
+
+    @Override
+    public DescriptorImpl getDescriptor() {
+        return (DescriptorImpl) super.getDescriptor();
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+        @SuppressWarnings("rawtypes")
+        public boolean isApplicable(Class<? extends AbstractProject> aClass) {
+            return true;
+        }
+
+        public String getDisplayName() {
+            return "Deb Packager - Delta";
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package jenkins.plugins.debpackager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * MD5, SHA1 and SHA256 of a file, computed in a single read.
+ */
+class Digests {
+
+    final long size;
+    final String md5;
+    final String sha1;
+    final String sha256;
+
+    Digests(long size, String md5, String sha1, String sha256) {
+        this.size = size;
+        this.md5 = md5;
+        this.sha1 = sha1;
+        this.sha256 = sha256;
+    }
+
+    static Digests of(File file) throws IOException {
+        MessageDigest md5 = digest("MD5");
+        MessageDigest sha1 = digest("SHA-1");
+        MessageDigest sha256 = digest("SHA-256");
+        long size = 0;
+        byte[] buf = new byte[65536];
+        InputStream in = new FileInputStream(file);
+        try {
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                md5.update(buf, 0, n);
+                sha1.update(buf, 0, n);
+                sha256.update(buf, 0, n);
+                size += n;
+            }
+        } finally {
+            in.close();
+        }
+        return new Digests(size, hex(md5), hex(sha1), hex(sha256));
+    }
+
+    static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(MessageDigest digest) {
+        return new String(Hex.encodeHex(digest.digest()));
+    }
+}
@@ -1,29 +1,103 @@
 package jenkins.plugins.debpackager;
 
+import hudson.AbortException;
+import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.util.NullStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
 public class DpkgBuilder extends Builder {
 
+    /** Null in configurations saved before the in-process writer existed. */
+    private final Boolean useDpkgDeb;
+    private final DebCompression compression;
+
     @DataBoundConstructor
-    public DpkgBuilder() {
+    public DpkgBuilder(boolean useDpkgDeb, DebCompression compression) {
+        this.useDpkgDeb = useDpkgDeb;
+        this.compression = compression;
+    }
+
+    /**
+     * Whether to fork <tt>dpkg-deb</tt>; jobs configured before the
+     * in-process writer keep using it.
+     */
+    public boolean isUseDpkgDeb() {
+        return useDpkgDeb == null || useDpkgDeb;
     }
 
+    public DebCompression getCompression() {
+        return compression;
+    }
+
+    /** Step name timings are recorded under. */
+    static final String STEP = "Dpkg";
+
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
         int retval = -1;
         listener.getLogger().println("Deb Packager - building dpkg...");
         try {
-            retval = launcher.launch().cmds(new String[] { "dpkg-deb", "-b", ".packaged/" })
-                    .envs(build.getEnvironment(listener)).stdout(listener)
-                    .pwd(build.getWorkspace()).join();
+            FilePath workspace = build.getWorkspace();
+            DebPackageAction action = build.getAction(DebPackageAction.class);
+            PackagingTimingAction timings = PackagingTimingAction.of(build);
+            EnvVars env = build.getEnvironment(listener);
+            String packageFile = DebPackageAction.packageFile(env);
+            FilePath staging = DebPackageAction.stagingDir(env, workspace);
+            long start = System.nanoTime();
+            if (action != null && action.isPrebuilt()) {
+                // the structurer already streamed the package or took it from the cache
+                listener.getLogger().println(packageFile + " already built, nothing to do");
+                retval = 0;
+            } else if (isUseDpkgDeb()) {
+                if (action != null && action.getSourceDateEpoch() >= 0) {
+                    // dpkg-deb clamps timestamps itself but keeps permissions as staged
+                    env.put("SOURCE_DATE_EPOCH", String.valueOf(action.getSourceDateEpoch()));
+                    normalizeModes(staging);
+                }
+                retval = launcher.launch().cmds(dpkgDeb(staging, packageFile, launcher, env,
+                        workspace)).envs(env).stdout(listener).pwd(workspace).join();
+            } else {
+                buildPackage(staging, workspace.child(packageFile),
+                        compression, action == null ? -1 : action.getSourceDateEpoch());
+                retval = 0;
+            }
+            if (retval == 0 && (action == null || !action.isPrebuilt())) {
+                timings.record(STEP, "compress", start, -1, workspace.child(packageFile)
+                        .length());
+            }
+            if (action != null && action.isInMemory() && !action.isPrebuilt()) {
+                // give the memory back to other builds right away
+                staging.getParent().deleteRecursive();
+            }
+            if (retval == 0 && action != null && action.getCacheKey() != null
+                    && !action.isPrebuilt()) {
+                start = System.nanoTime();
+                action.getCache().store(workspace, action.getCacheKey(), packageFile);
+                timings.record(STEP, "cache store", start);
+            }
+            listener.getLogger().println(timings.summary(STEP));
         } catch (Exception e) {
             e.printStackTrace(listener.getLogger());
         }
@@ -32,6 +106,150 @@ public class DpkgBuilder extends Builder {
         return retval == 0;
     }
 
+    /**
+     * Changes the owners of the staged tree in a fakeroot session, so only
+     * the archive headers see them, then execs dpkg-deb. Arguments: staging
+     * dir, package file, path/owner pairs, <tt>--</tt>, dpkg-deb options.
+     */
+    private static final String FAKEROOT_SCRIPT = "root=$1; out=$2; shift 2\n"
+            + "chown -R 0:0 \"$root\" || exit 1\n"
+            + "while [ \"$1\" != -- ]; do\n"
+            + "  chown -R -h \"$2\" \"$root/$1\" || exit 1\n"
+            + "  shift 2\n"
+            + "done\n"
+            + "shift\n"
+            + "exec dpkg-deb \"$@\" -b \"$root\" \"$out\"\n";
+
+    /**
+     * The dpkg-deb command line: <tt>--root-owner-group</tt> when dpkg-deb
+     * knows it and no copy rule maps an owner, otherwise dpkg-deb under
+     * fakeroot with the owners applied to the staged tree.
+     */
+    private List<String> dpkgDeb(FilePath staging, String packageFile, Launcher launcher,
+            EnvVars env, FilePath workspace) throws IOException, InterruptedException {
+        FilePath ownership = staging.getParent().child(".packaged.ownership");
+        Map<String, String> owners = new TreeMap<String, String>();
+        if (ownership.exists()) {
+            for (String line : ownership.readToString().split("\n")) {
+                String[] fields = line.split("\t");
+                if (fields.length == 2) {
+                    // sorted, so owners of deeper paths are applied last
+                    owners.put(fields[0], fields[1]);
+                }
+            }
+        }
+
+        List<String> cmds = new ArrayList<String>();
+        String version = dpkgDebVersion(launcher, env, workspace);
+        if (owners.isEmpty() && DebVersion.compare(version, "1.19") >= 0) {
+            cmds.add("dpkg-deb");
+            cmds.add("--root-owner-group");
+            if (compression != null) {
+                cmds.addAll(compression.dpkgDebArgs());
+            }
+            cmds.add("-b");
+            cmds.add(staging.getRemote());
+            cmds.add(packageFile);
+            return cmds;
+        }
+
+        try {
+            launcher.launch().cmds("fakeroot", "-v").envs(env).stdout(new NullStream())
+                    .pwd(workspace).join();
+        } catch (IOException e) {
+            throw new AbortException((owners.isEmpty() ? "dpkg-deb " + version
+                    + " has no --root-owner-group (dpkg 1.19 or later)"
+                    : "copy rules map owners") + " and fakeroot is not installed on "
+                    + "this node; install fakeroot or build with the in-process writer");
+        }
+        cmds.add("fakeroot");
+        cmds.add("sh");
+        cmds.add("-c");
+        cmds.add(FAKEROOT_SCRIPT);
+        cmds.add("sh");
+        cmds.add(staging.getRemote());
+        cmds.add(packageFile);
+        for (Map.Entry<String, String> e : owners.entrySet()) {
+            cmds.add(e.getKey());
+            cmds.add(e.getValue());
+        }
+        cmds.add("--");
+        if (compression != null) {
+            cmds.addAll(compression.dpkgDebArgs());
+        }
+        return cmds;
+    }
+
+    private static String dpkgDebVersion(Launcher launcher, EnvVars env, FilePath workspace)
+            throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        launcher.launch().cmds("dpkg-deb", "--version").envs(env).stdout(out).pwd(workspace)
+                .join();
+        Matcher m = Pattern.compile("version (\\d[^\\s]*?)\\.?\\s").matcher(out.toString());
+        return m.find() ? m.group(1) : "0";
+    }
+
+    /**
+     * Sets the modes of the staged tree the way the in-process writer does
+     * in reproducible mode: 0755 for directories and for files with any
+     * execute bit, 0644 for the other files. Symlinks are left alone.
+     */
+    @SuppressWarnings("serial")
+    private static void normalizeModes(FilePath staging) throws IOException,
+            InterruptedException {
+        staging.act(new FileCallable<Void>() {
+            public Void invoke(File f, VirtualChannel channel) throws IOException,
+                    InterruptedException {
+                normalize(f);
+                return null;
+            }
+
+            private void normalize(File f) throws IOException, InterruptedException {
+                if (Util.isSymlink(f)) {
+                    return;
+                }
+                FilePath path = new FilePath(f);
+                if (f.isDirectory()) {
+                    path.chmod(0755);
+                    File[] children = f.listFiles();
+                    if (children != null) {
+                        for (File child : children) {
+                            normalize(child);
+                        }
+                    }
+                } else {
+                    path.chmod((path.mode() & 0111) != 0 ? 0755 : 0644);
+                }
+            }
+        });
+    }
+
+    @SuppressWarnings("serial")
+    private static void buildPackage(FilePath packagePath, FilePath packageFile,
+            final DebCompression compression, final long sourceDateEpoch) throws IOException,
+            InterruptedException {
+        final String output = packageFile.getRemote();
+        packagePath.act(new FileCallable<Void>() {
+            public Void invoke(File f, VirtualChannel channel) throws IOException,
+                    InterruptedException {
+                DebArchiveWriter writer = new DebArchiveWriter(new File(output), compression,
+                        sourceDateEpoch);
+                try {
+                    writer.loadOwners(new File(f.getParentFile(), ".packaged.ownership"));
+                    writer.addTree(f);
+                    writer.finish();
+                } finally {
+                    writer.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    public String toString() {
+        return String.format("{useDpkgDeb: %s, compression: %s}", isUseDpkgDeb(), compression);
+    }
+
     @Override
     public DescriptorImpl getDescriptor() {
         return (DescriptorImpl) super.getDescriptor();
@@ -6,7 +6,23 @@ import hudson.model.BuildListener;
 import hudson.remoting.VirtualChannel;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
 
 public class FilePathUtils {
 
@@ -49,44 +65,475 @@ public class FilePathUtils {
         return p.waitFor();
     }
 
-    private static int sudoDeleteRecursive(File f) throws IOException, InterruptedException {
-        String command = String.format("sudo rm -rf %s", f.getAbsolutePath());
-        Process p = Runtime.getRuntime().exec(command);
-        return p.waitFor();
+    static void sudoDeleteRecursive(File f) throws IOException, InterruptedException {
+        Process p = Runtime.getRuntime().exec(
+                new String[] { "sudo", "rm", "-rf", f.getAbsolutePath() });
+        int exit = p.waitFor();
+        if (exit != 0) {
+            throw new IOException("sudo rm -rf " + f.getAbsolutePath() + " exited with " + exit);
+        }
+    }
+
+    /**
+     * Runs <tt>command</tt> through sudo on this node, failing on a non-zero
+     * exit code.
+     */
+    static void sudo(String... command) throws IOException, InterruptedException {
+        String[] cmd = new String[command.length + 1];
+        cmd[0] = "sudo";
+        System.arraycopy(command, 0, cmd, 1, command.length);
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        String output = IOUtils.toString(p.getInputStream());
+        int exit = p.waitFor();
+        if (exit != 0) {
+            throw new IOException(Arrays.asList(cmd) + " exited with " + exit + ": "
+                    + output.trim());
+        }
+    }
+
+    /**
+     * Replaces <tt>dest</tt> with a copy of <tt>src</tt> through sudo. The copy
+     * is made next to <tt>dest</tt> and renamed over it, so readers never see
+     * a partial file.
+     */
+    static void sudoInstall(File src, File dest) throws IOException, InterruptedException {
+        String tmp = dest.getAbsolutePath() + ".new";
+        sudo("cp", src.getAbsolutePath(), tmp);
+        sudo("chmod", "644", tmp);
+        sudo("mv", "-f", tmp, dest.getAbsolutePath());
+    }
+
+    /**
+     * Moves <tt>path</tt> aside and deletes it in the background on its node,
+     * so a new tree can be created in its place right away.
+     *
+     * @return handle to pass to {@link #awaitDelete(FilePath, String, BuildListener)}
+     */
+    @SuppressWarnings("serial")
+    public static String deleteInBackground(FilePath path) throws IOException,
+            InterruptedException {
+        return path.act(new FileCallable<String>() {
+            public String invoke(File f, VirtualChannel channel) throws IOException,
+                    InterruptedException {
+                return TreeDeleter.deleteInBackground(f);
+            }
+        });
+    }
+
+    /**
+     * Waits for a background delete and reports anything it failed to remove.
+     */
+    @SuppressWarnings("serial")
+    public static void awaitDelete(FilePath path, final String handle, BuildListener listener)
+            throws IOException, InterruptedException {
+        List<String> failures = path.act(new FileCallable<List<String>>() {
+            public List<String> invoke(File f, VirtualChannel channel) throws IOException,
+                    InterruptedException {
+                return new ArrayList<String>(TreeDeleter.await(handle));
+            }
+        });
+        for (String failure : failures) {
+            listener.getLogger().println("Failed to clean up " + failure);
+        }
     }
 
     public static boolean isUnix() {
         return File.pathSeparatorChar != ';';
     }
 
-    public static int copyRecursiveWithPermissions(FilePath source, String includes,
-            String excludes, FilePath target, BuildListener listener) throws IOException,
+    /**
+     * Copies the files matched by all <tt>copyPaths</tt> into the staging
+     * directory, scanning the workspace once for all of them. Files of at
+     * least <tt>largeFileThreshold</tt> bytes are copied by {@link LargeFiles}.
+     */
+    @SuppressWarnings("serial")
+    public static CopyResult copyAll(FilePath workspace, List<CopyPath> copyPaths,
+            FilePath packagePath, final long largeFileThreshold, final BuildListener listener)
+            throws IOException, InterruptedException {
+        final String packageDir = packagePath.getRemote();
+        final List<CopyPath> paths = new ArrayList<CopyPath>();
+        if (copyPaths != null) {
+            paths.addAll(copyPaths);
+        }
+        for (CopyPath path : paths) {
+            listener.getLogger().println(path.toString());
+        }
+        CopyResult result = workspace.act(new FileCallable<CopyResult>() {
+            public CopyResult invoke(File f, VirtualChannel channel) throws IOException,
+                    InterruptedException {
+                return copyAll(f, paths, new File(packageDir), largeFileThreshold, listener
+                        .getLogger());
+            }
+        });
+
+        listener.getLogger().println(
+                "Copied " + result + " from " + workspace.getRemote() + " -> " + packageDir);
+        logSample(result, "Failed to copy ", listener);
+        return result;
+    }
+
+    private static CopyResult copyAll(File workspace, List<CopyPath> paths, File packageDir,
+            long largeFileThreshold, PrintStream log) throws IOException, InterruptedException {
+        CopyResult result = new CopyResult();
+        List<StagingTask> tasks = new ArrayList<StagingTask>();
+        for (CopyPath path : paths) {
+            File base = path.workingPath(workspace);
+            if (!base.isDirectory() && !base.mkdirs()) {
+                result.failed(path.getWorkingDir(), new IOException("Failed to create " + base));
+            }
+            File target = new File(packageDir, path.getTo());
+            if (!target.isDirectory() && !target.mkdirs()) {
+                result.failed(path.getTo(), new IOException("Failed to create " + target));
+            }
+        }
+        long scanStart = System.nanoTime();
+        List<List<String>> matches = WorkspaceScanner.scan(workspace, paths);
+        result.scanned(System.nanoTime() - scanStart);
+        for (int i = 0; i < paths.size(); i++) {
+            CopyPath path = paths.get(i);
+            File base = path.workingPath(workspace);
+            StagingMode mode = StagingMode.fromString(path.getStagingMode());
+            String label = path.label();
+            for (String file : matches.get(i)) {
+                String dest = DebArchiveWriter.normalize(path.getTo() + "/" + file);
+                StagingTask task = new StagingTask(dest, new File(base, file), new File(
+                        packageDir, dest), mode);
+                task.rule = label;
+                tasks.add(task);
+            }
+        }
+        stageAll(tasks, result, largeFileThreshold, log);
+        return result;
+    }
+
+    /**
+     * Total size of the files matched by <tt>copyPaths</tt>.
+     */
+    @SuppressWarnings("serial")
+    public static long matchedSize(FilePath workspace, List<CopyPath> copyPaths)
+            throws IOException, InterruptedException {
+        final List<CopyPath> paths = new ArrayList<CopyPath>();
+        if (copyPaths != null) {
+            paths.addAll(copyPaths);
+        }
+        return workspace.act(new FileCallable<Long>() {
+            public Long invoke(File f, VirtualChannel channel) throws IOException,
+                    InterruptedException {
+                List<List<String>> matches = WorkspaceScanner.scan(f, paths);
+                long size = 0;
+                for (int i = 0; i < paths.size(); i++) {
+                    File base = paths.get(i).workingPath(f);
+                    for (String file : matches.get(i)) {
+                        size += new File(base, file).length();
+                    }
+                }
+                return size;
+            }
+        });
+    }
+
+    /**
+     * Brings the staging directory up to date with the copy rules, copying
+     * only files added or changed since the manifest was written and removing
+     * files that are no longer matched.
+     */
+    @SuppressWarnings("serial")
+    public static CopyResult stageIncremental(FilePath workspace, List<CopyPath> copyPaths,
+            FilePath packagePath, final String manifestName, final boolean checksums,
+            final long largeFileThreshold, final BuildListener listener) throws IOException,
             InterruptedException {
-        FilePath[] files = source.list(includes, excludes);
-        listener.getLogger().println("Preparing to copy " + files.length + " file(s)");
+        final String packageDir = packagePath.getRemote();
+        final List<CopyPath> paths = new ArrayList<CopyPath>();
+        if (copyPaths != null) {
+            paths.addAll(copyPaths);
+        }
+        CopyResult result = workspace.act(new FileCallable<CopyResult>() {
+            public CopyResult invoke(File f, VirtualChannel channel) throws IOException,
+                    InterruptedException {
+                return stageIncremental(f, paths, new File(packageDir), new File(f,
+                        manifestName), checksums, largeFileThreshold, listener.getLogger());
+            }
+        });
+
+        listener.getLogger().println(
+                "Incrementally staged " + result + ", " + result.getSkipped() + " unchanged, "
+                        + result.getRemoved() + " removed");
+        logSample(result, "Failed to stage ", listener);
+        return result;
+    }
 
-        for (FilePath file : files) {
-            int i = 0;
-            while (i < file.getRemote().length() && i < source.getRemote().length()
-                    && file.getRemote().charAt(i) == source.getRemote().charAt(i)) {
-                i++;
+    private static CopyResult stageIncremental(File workspace, List<CopyPath> paths,
+            File packageDir, File manifestFile, boolean checksums, long largeFileThreshold,
+            PrintStream log)
+            throws IOException, InterruptedException {
+        StagingManifest previous = StagingManifest.load(manifestFile);
+        StagingManifest current = new StagingManifest();
+        CopyResult result = new CopyResult();
+
+        List<StagingTask> tasks = new ArrayList<StagingTask>();
+        long scanStart = System.nanoTime();
+        List<List<String>> matches = WorkspaceScanner.scan(workspace, paths);
+        result.scanned(System.nanoTime() - scanStart);
+        for (int i = 0; i < paths.size(); i++) {
+            CopyPath path = paths.get(i);
+            File base = path.workingPath(workspace);
+            StagingMode mode = StagingMode.fromString(path.getStagingMode());
+            String label = path.label();
+            for (String file : matches.get(i)) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                String dest = DebArchiveWriter.normalize(path.getTo() + "/" + file);
+                File src = new File(base, file);
+                File target = new File(packageDir, dest);
+                try {
+                    StagingManifest.Entry entry = unchanged(previous.get(dest), src, target,
+                            checksums);
+                    if (entry != null) {
+                        String md5 = entry.md5 != null ? entry.md5 : StagingManifest.md5(target);
+                        result.skipped();
+                        result.staged(dest, entry.size, md5);
+                        current.put(dest, new StagingManifest.Entry(entry.size, entry.mtime, md5));
+                    } else {
+                        StagingTask task = new StagingTask(dest, src, target, mode);
+                        task.rule = label;
+                        tasks.add(task);
+                    }
+                } catch (IOException e) {
+                    result.failed(file, e);
+                }
             }
+        }
 
-            listener.getLogger().println(
-                    "Copying " + source.getRemote() + " : " + file.getRemote().substring(i)
-                            + " -> " + target.getRemote());
-            try {
-                String dest = file.getRemote().substring(i);
-                if (dest.startsWith("/")) {
-                    dest = dest.substring(1);
+        stageAll(tasks, result, largeFileThreshold, log);
+        for (StagingTask task : tasks) {
+            if (task.md5 != null) {
+                current.put(task.path, new StagingManifest.Entry(task.size, task.mtime, task.md5));
+            }
+        }
+
+        for (String path : previous.paths()) {
+            if (!current.contains(path)) {
+                File stale = new File(packageDir, path);
+                if (stale.delete() || !stale.exists()) {
+                    result.removed();
+                    pruneEmptyParents(stale.getParentFile(), packageDir);
+                } else {
+                    result.failed(path, new IOException("Failed to delete " + stale));
                 }
+            }
+        }
+
+        current.save(manifestFile);
+        return result;
+    }
+
+    private static StagingManifest.Entry unchanged(StagingManifest.Entry previous, File src,
+            File target, boolean checksums) throws IOException {
+        if (previous == null || !target.exists()) {
+            return null;
+        }
+        if (previous.sameStat(src)) {
+            return previous;
+        }
+        if (checksums && previous.md5 != null && previous.size == src.length()
+                && previous.md5.equals(StagingManifest.md5(src))) {
+            target.setLastModified(src.lastModified());
+            return new StagingManifest.Entry(src.length(), src.lastModified(), previous.md5);
+        }
+        return null;
+    }
 
-                file.copyToWithPermission(target.child(dest));
-            } catch (IOException e) {
-                e.printStackTrace(listener.getLogger());
-                listener.getLogger().println("Continuing with the other files");
+    private static void pruneEmptyParents(File dir, File root) {
+        while (dir != null && !dir.equals(root)) {
+            String[] children = dir.list();
+            if (children == null || children.length > 0 || !dir.delete()) {
+                return;
+            }
+            dir = dir.getParentFile();
+        }
+    }
+
+    /**
+     * Number of threads staging files in parallel. Every file is hashed on the
+     * thread that copies it, so this also spreads the md5sums work.
+     */
+    static final int STAGING_THREADS = Math.max(1,
+            Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Stages a single file and reports its MD5.
+     */
+    private static final class StagingTask implements Callable<String> {
+        final String path;
+        final File src;
+        final File dest;
+        final StagingMode mode;
+        String rule;
+        CopyProgress progress;
+        long largeFileThreshold = LargeFiles.THRESHOLD;
+        boolean linked;
+        long size;
+        long mtime;
+        String md5;
+
+        StagingTask(String path, File src, File dest, StagingMode mode) {
+            this.path = path;
+            this.src = src;
+            this.dest = dest;
+            this.mode = mode;
+        }
+
+        public String call() throws IOException, InterruptedException {
+            size = src.length();
+            mtime = src.lastModified();
+            String digest = stage(src, dest, mode, largeFileThreshold);
+            linked = digest == null;
+            String md5 = linked ? StagingManifest.md5(src) : digest;
+            if (progress != null) {
+                progress.copied(size);
+            }
+            return md5;
+        }
+    }
+
+    private static void stageAll(List<StagingTask> tasks, CopyResult result,
+            long largeFileThreshold, PrintStream log) throws InterruptedException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        CopyProgress progress = new CopyProgress(log, "Staged", tasks.size());
+        for (StagingTask task : tasks) {
+            task.progress = progress;
+            task.largeFileThreshold = largeFileThreshold;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(STAGING_THREADS,
+                tasks.size()));
+        try {
+            List<Future<String>> futures = pool.invokeAll(tasks);
+            for (int i = 0; i < tasks.size(); i++) {
+                StagingTask task = tasks.get(i);
+                try {
+                    task.md5 = futures.get(i).get();
+                    if (task.linked) {
+                        result.linked();
+                    }
+                    result.copied(task.size);
+                    result.staged(task.path, task.size, task.md5);
+                    if (task.rule != null) {
+                        result.ruleCopied(task.rule, 1, task.size);
+                    }
+                } catch (ExecutionException e) {
+                    result.failed(task.path, e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            progress.close();
+        }
+    }
+
+    /**
+     * Logs the failures of a copy and a sample of what it staged, instead of
+     * every path.
+     */
+    private static void logSample(CopyResult result, String failed, BuildListener listener) {
+        PrintStream log = listener.getLogger();
+        for (String failure : result.getFailures()) {
+            log.println(failed + failure);
+        }
+        int shown = 0;
+        for (String path : result.getMd5sums().keySet()) {
+            if (shown++ == CopyProgress.SAMPLE) {
+                log.println("  ... and " + (result.getMd5sums().size() - CopyProgress.SAMPLE)
+                        + " more");
+                break;
+            }
+            log.println("  " + path);
+        }
+    }
+
+    /**
+     * Places <tt>src</tt> at <tt>dest</tt> according to <tt>mode</tt>, falling
+     * back to a byte copy when linking is not possible.
+     *
+     * @return MD5 of the copied bytes, or null if the file was linked
+     */
+    static String stage(File src, File dest, StagingMode mode, long largeFileThreshold)
+            throws IOException, InterruptedException {
+        if (mode == StagingMode.COPY) {
+            return copyWithPermissions(src, dest, largeFileThreshold);
+        }
+        File parent = dest.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent);
+        }
+        if (mode == StagingMode.HARDLINK && NativeLinks.hardlink(src, dest)) {
+            return null;
+        }
+        if (mode == StagingMode.REFLINK) {
+            int perms = new FilePath(src).mode();
+            if (NativeLinks.reflink(src, dest, perms < 0 ? 0644 : perms & 07777)) {
+                dest.setLastModified(src.lastModified());
+                return null;
+            }
+        }
+        return copyWithPermissions(src, dest, largeFileThreshold);
+    }
+
+    /**
+     * {@link #copyWithPermissions(File, File, long)} with the default large
+     * file threshold.
+     */
+    static String copyWithPermissions(File src, File dest) throws IOException,
+            InterruptedException {
+        return copyWithPermissions(src, dest, LargeFiles.THRESHOLD);
+    }
+
+    /**
+     * Local equivalent of {@link FilePath#copyToWithPermission(FilePath)},
+     * also keeping the modification time. Files of at least
+     * <tt>largeFileThreshold</tt> bytes go through {@link LargeFiles} instead
+     * of heap buffers.
+     *
+     * @return MD5 of the copied bytes, computed on the way through
+     */
+    static String copyWithPermissions(File src, File dest, long largeFileThreshold)
+            throws IOException, InterruptedException {
+        File parent = dest.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent);
+        }
+        String digest = LargeFiles.isLarge(src, largeFileThreshold) ? LargeFiles.copy(src, dest)
+                : copyStream(src, dest);
+        dest.setLastModified(src.lastModified());
+        int mode = new FilePath(src).mode();
+        if (mode >= 0) {
+            new FilePath(dest).chmod(mode & 07777);
+        }
+        return digest;
+    }
+
+    private static String copyStream(File src, File dest) throws IOException {
+        MessageDigest md5 = Digests.digest("MD5");
+        byte[] buf = new byte[65536];
+        InputStream in = new FileInputStream(src);
+        try {
+            // it may be a hardlink left by an earlier staging run
+            dest.delete();
+            OutputStream out = new FileOutputStream(dest);
+            try {
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    md5.update(buf, 0, n);
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                out.close();
             }
+        } finally {
+            in.close();
         }
-        return 0;
+        return Digests.hex(md5);
     }
 }
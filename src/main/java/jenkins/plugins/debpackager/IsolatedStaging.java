@@ -0,0 +1,167 @@
+package jenkins.plugins.debpackager;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.List;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Gives every build its own staging tree and package file, so builds sharing
+ * a workspace can package concurrently. Everything a build writes goes into
+ * <tt>.packaged.builds/&lt;BUILD_TAG&gt;/</tt> in the workspace instead of
+ * next to it. Small packages can be staged on a tmpfs instead; the package
+ * file itself always stays in the workspace.
+ */
+public class IsolatedStaging extends AbstractDescribableImpl<IsolatedStaging> implements
+        Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Per-build directories, relative to the workspace. */
+    static final String BUILDS = ".packaged.builds";
+
+    static final String DEFAULT_TMPFS = "/dev/shm";
+
+    private final boolean useTmpfs;
+    private final String tmpfsDirectory;
+    private final String memoryLimit;
+
+    @DataBoundConstructor
+    public IsolatedStaging(boolean useTmpfs, String tmpfsDirectory, String memoryLimit) {
+        this.useTmpfs = useTmpfs;
+        this.tmpfsDirectory = tmpfsDirectory;
+        this.memoryLimit = memoryLimit;
+    }
+
+    public boolean isUseTmpfs() {
+        return useTmpfs;
+    }
+
+    public String getTmpfsDirectory() {
+        return tmpfsDirectory;
+    }
+
+    /**
+     * Largest package staged on the tmpfs, in MB.
+     */
+    public String getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    long memoryLimitBytes() {
+        try {
+            return Long.parseLong(memoryLimit.trim()) * 1024 * 1024;
+        } catch (RuntimeException e) {
+            return 256L * 1024 * 1024;
+        }
+    }
+
+    /**
+     * Directory of this build's files, relative to the workspace.
+     */
+    static String buildDir(EnvVars env) {
+        return BUILDS + "/" + tag(env);
+    }
+
+    /**
+     * <tt>BUILD_TAG</tt>, safe to use as a file name.
+     */
+    static String tag(EnvVars env) {
+        return env.get("BUILD_TAG", "build").replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Where to stage the files matched by <tt>copyPaths</tt>: the tmpfs if it
+     * is enabled, they fit the memory limit and the tmpfs has room for them,
+     * the build directory in the workspace otherwise.
+     */
+    @SuppressWarnings("serial")
+    FilePath stagingRoot(FilePath workspace, final String buildDir, List<CopyPath> copyPaths,
+            PrintStream log) throws IOException, InterruptedException {
+        if (useTmpfs) {
+            final long size = FilePathUtils.matchedSize(workspace, copyPaths);
+            if (size > memoryLimitBytes()) {
+                log.println("Package of " + size / 1024 / 1024 + " MB is over the "
+                        + memoryLimitBytes() / 1024 / 1024 + " MB memory limit, staging on disk");
+            } else {
+                String tmpfs = Util.fixEmptyAndTrim(tmpfsDirectory);
+                final String mount = tmpfs == null ? DEFAULT_TMPFS : tmpfs;
+                final String root = mount + "/deb-packager/"
+                        + buildDir.substring(BUILDS.length() + 1);
+                boolean fits = workspace.act(new FileCallable<Boolean>() {
+                    public Boolean invoke(File f, VirtualChannel channel) {
+                        File dir = new File(root);
+                        // leave as much again for the other builds staging there
+                        return new File(mount).getUsableSpace() > size * 2
+                                && (dir.isDirectory() || dir.mkdirs());
+                    }
+                });
+                if (fits) {
+                    log.println("Staging on tmpfs in " + root);
+                    return new FilePath(workspace.getChannel(), root);
+                }
+                log.println("Not enough room in " + mount + ", staging on disk");
+            }
+        }
+        return workspace.child(buildDir);
+    }
+
+    public String toString() {
+        return String.format("{useTmpfs: %s, tmpfsDirectory: %s, memoryLimit: %s}", useTmpfs,
+                tmpfsDirectory, memoryLimit);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<IsolatedStaging> {
+        public String getDisplayName() {
+            return "Isolated Staging";
+        }
+    }
+
+    /**
+     * Removes the build directory and the tmpfs staging tree once the build
+     * is done, whatever its result. Archive the package if it is needed
+     * afterwards.
+     */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static class Cleanup extends RunListener<AbstractBuild> {
+
+        public Cleanup() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            DebPackageAction action = build.getAction(DebPackageAction.class);
+            FilePath workspace = build.getWorkspace();
+            if (action == null || action.getBuildDir() == null || workspace == null) {
+                return;
+            }
+            try {
+                if (action.getStagingRoot() != null) {
+                    new FilePath(workspace.getChannel(), action.getStagingRoot())
+                            .deleteRecursive();
+                }
+                workspace.child(action.getBuildDir()).deleteRecursive();
+            } catch (Exception e) {
+                listener.getLogger().println("Failed to remove the packaging files: " + e);
+            }
+        }
+    }
+}
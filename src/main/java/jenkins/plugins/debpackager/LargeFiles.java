@@ -0,0 +1,140 @@
+package jenkins.plugins.debpackager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.security.MessageDigest;
+
+/**
+ * Copies of large files that bypass the heap. The source is memory mapped a
+ * window at a time, hashed straight from the mapping and written with
+ * positional channel writes, so heap usage stays flat however big the file
+ * is. When the source is sparse, all-zero blocks are skipped instead of
+ * written, which keeps it sparse in the staging tree; dense files stay
+ * dense.
+ */
+class LargeFiles {
+
+    /**
+     * Files of at least this many bytes take the channel path, unless the
+     * global configuration sets another threshold.
+     */
+    static final long THRESHOLD = 32L * 1024 * 1024;
+
+    /** Bytes mapped at a time. */
+    static final int WINDOW = 64 * 1024 * 1024;
+
+    /** Granularity of the hole detection, a filesystem block. */
+    static final int BLOCK = 4096;
+
+    static boolean isLarge(File file, long threshold) {
+        return file.length() >= threshold;
+    }
+
+    /**
+     * Copies the contents of <tt>src</tt> to <tt>dest</tt>, leaving holes for
+     * all-zero blocks if <tt>src</tt> has holes itself.
+     *
+     * @return MD5 of the copied bytes
+     */
+    static String copy(File src, File dest) throws IOException {
+        MessageDigest md5 = Digests.digest("MD5");
+        FileInputStream in = new FileInputStream(src);
+        try {
+            // never write through an existing file, it may be a hardlink
+            dest.delete();
+            RandomAccessFile out = new RandomAccessFile(dest, "rw");
+            try {
+                FileChannel source = in.getChannel();
+                FileChannel target = out.getChannel();
+                long size = source.size();
+                boolean sparse = NativeLinks.hasHoles(src);
+                for (long offset = 0; offset < size; offset += WINDOW) {
+                    MappedByteBuffer window = source.map(MapMode.READ_ONLY, offset, Math.min(
+                            WINDOW, size - offset));
+                    md5.update(window.duplicate());
+                    if (sparse) {
+                        writeNonZeroBlocks(window, target, offset);
+                    } else {
+                        write(window, 0, window.limit(), target, offset);
+                    }
+                }
+                // a trailing hole still has to count towards the size
+                out.setLength(size);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return Digests.hex(md5);
+    }
+
+    private static void writeNonZeroBlocks(ByteBuffer window, FileChannel target, long offset)
+            throws IOException {
+        int limit = window.limit();
+        int start = -1;
+        for (int block = 0; block < limit; block += BLOCK) {
+            int end = Math.min(block + BLOCK, limit);
+            if (isZero(window, block, end)) {
+                if (start >= 0) {
+                    write(window, start, block, target, offset);
+                    start = -1;
+                }
+            } else if (start < 0) {
+                start = block;
+            }
+        }
+        if (start >= 0) {
+            write(window, start, limit, target, offset);
+        }
+    }
+
+    private static boolean isZero(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            if (buffer.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void write(ByteBuffer window, int from, int to, FileChannel target,
+            long offset) throws IOException {
+        ByteBuffer run = window.duplicate();
+        run.limit(to).position(from);
+        long position = offset + from;
+        while (run.hasRemaining()) {
+            position += target.write(run, position);
+        }
+    }
+
+    /**
+     * Appends all of <tt>src</tt> to <tt>target</tt> at its current
+     * position, letting the kernel move the bytes.
+     */
+    static void transfer(File src, FileChannel target) throws IOException {
+        FileInputStream in = new FileInputStream(src);
+        try {
+            FileChannel source = in.getChannel();
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                position += source.transferTo(position, size - position, target);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -1,54 +1,87 @@
 package jenkins.plugins.debpackager;
 
+import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
-import hudson.tasks.Shell;
 
 import java.io.IOException;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
 public class ManualRepoBuilder extends Builder {
-    String command = "\n"
-            + "echo DEB_PKG_NAME=$DEB_PKG_NAME \n"
-            + "echo DEBIAN_REPO_BASE=$DEBIAN_REPO_BASE \n"
-            + "echo DEBIAN_REPO_DISTRIBUTION=$DEBIAN_REPO_DISTRIBUTION \n"
-            + "echo PKG_CHAR=$PKG_CHAR \n"
-            + "echo PKG_NAME=$PKG_NAME \n"
-            + "/usr/bin/lockfile-create -v --retry 10 /var/run/jenkins/debpackager\n"
-            + "if [ $? -ne 0 ]; then echo 'Cannot aquire lock!'; exit; fi\n"
-            + "lockfile-touch /var/run/jenkins/debpackager &\n"
-            + "LOCK_UPDATER=\"$!\"\n"
-            + "sudo mkdir -p $DEBIAN_REPO_BASE/pool/main/$PKG_CHAR/$PKG_NAME \n"
-            + "sudo cp .packaged.deb $DEBIAN_REPO_BASE/pool/main/$PKG_CHAR/$PKG_NAME/$DEB_PKG_NAME.deb \n"
-            + "cd $DEBIAN_REPO_BASE \n"
-            + "sudo pip install https://github.com/genehallman/pydpkg-lite/tarball/master#egg=pydpkg-lite \n"
-            + "sudo sh -c \"dpkg.py $DEBIAN_REPO_BASE dists/$DEBIAN_REPO_DISTRIBUTION/main/binary-all/Packages > dists/$DEBIAN_REPO_DISTRIBUTION/main/binary-all/Packages_new\" \n"
-            + "sudo mv dists/$DEBIAN_REPO_DISTRIBUTION/main/binary-all/Packages_new dists/$DEBIAN_REPO_DISTRIBUTION/main/binary-all/Packages \n"
-            + "sudo sh -c \"cat dists/$DEBIAN_REPO_DISTRIBUTION/main/binary-all/Packages | gzip -9 > dists/$DEBIAN_REPO_DISTRIBUTION/main/binary-all/Packages.gz\" \n"
-            + "kill \"${LOCK_UPDATER}\"\n"
-            + "/usr/bin/lockfile-remove -v /var/run/jenkins/debpackager\n"
-            + "cd - \n";
+
+    private final AsyncPublish asyncPublish;
 
     @DataBoundConstructor
-    public ManualRepoBuilder() {
+    public ManualRepoBuilder(AsyncPublish asyncPublish) {
+        this.asyncPublish = asyncPublish;
+    }
+
+    public AsyncPublish getAsyncPublish() {
+        return asyncPublish;
     }
 
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
             throws InterruptedException, IOException {
-        String fullName = build.getEnvironment(listener).get("DEB_PKG_NAME");
-        String pkgName = fullName.split("_")[0];
-        String pkgChar = String.valueOf(pkgName.charAt(0));
-
-        String com = command.replaceAll("\\$PKG_CHAR", pkgChar).replaceAll("\\$PKG_NAME", pkgName);
+        EnvVars env = build.getEnvironment(listener);
+        final String node = build.getBuiltOnStr();
+        final String fullName = env.get("DEB_PKG_NAME");
+        final String repoBase = env.get("DEBIAN_REPO_BASE");
+        final String distribution = env.get("DEBIAN_REPO_DISTRIBUTION");
+        final String deltaName = env.get("DEB_DELTA_NAME");
+        String packageFile = DebPackageAction.packageFile(env);
+        // optional, the Release file stays unsigned without it
+        final String signingKey = Util.fixEmptyAndTrim(env.get("DEBIAN_REPO_SIGNING_KEY"));
+        // optional, every version stays in the repository without it
+        int keepVersions = 0;
+        String keep = Util.fixEmptyAndTrim(env.get("DEBIAN_REPO_KEEP_VERSIONS"));
+        if (keep != null) {
+            try {
+                keepVersions = Integer.parseInt(keep);
+            } catch (NumberFormatException e) {
+                listener.getLogger().println("Ignoring DEBIAN_REPO_KEEP_VERSIONS=" + keep);
+            }
+        }
+        listener.getLogger().println("DEB_PKG_NAME=" + fullName);
+        listener.getLogger().println("DEBIAN_REPO_BASE=" + repoBase);
+        listener.getLogger().println("DEBIAN_REPO_DISTRIBUTION=" + distribution);
+        if (deltaName != null) {
+            listener.getLogger().println("DEB_DELTA_NAME=" + deltaName);
+        }
 
-        return new Shell(com).perform(build, launcher, listener);
+        final int versions = keepVersions;
+        AsyncPublish.Task task = new AsyncPublish.Task() {
+            public boolean publish(FilePath dir, String packageFile, Launcher launcher,
+                    BuildListener listener) throws IOException, InterruptedException {
+                return DebRepository.publish(node, dir, packageFile, repoBase, distribution,
+                        fullName, deltaName, signingKey, versions, listener);
+            }
+        };
+        try {
+            if (asyncPublish != null) {
+                asyncPublish.submit(build, "Manual Repo", env, task, listener);
+                return true;
+            }
+            PackagingTimingAction timings = PackagingTimingAction.of(build);
+            long start = System.nanoTime();
+            boolean published = task.publish(build.getWorkspace(), packageFile, launcher,
+                    listener);
+            timings.record("Manual Repo", "publish", start, 1, build.getWorkspace().child(
+                    packageFile).length());
+            listener.getLogger().println(timings.summary("Manual Repo"));
+            return published;
+        } catch (IOException e) {
+            e.printStackTrace(listener.getLogger());
+            return false;
+        }
     }
 
     @Override
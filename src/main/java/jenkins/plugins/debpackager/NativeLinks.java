@@ -0,0 +1,111 @@
+package jenkins.plugins.debpackager;
+
+import java.io.File;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+
+/**
+ * Hardlink and reflink primitives through libc. Every method returns false
+ * instead of failing when the operation is not possible (other filesystem,
+ * no reflink support, not Linux), so callers can fall back to a byte copy.
+ */
+class NativeLinks {
+
+    private static final int O_RDONLY = 0;
+    private static final int O_WRONLY = 01;
+    private static final int O_CREAT = 0100;
+    private static final int O_TRUNC = 01000;
+    /** _IOW(0x94, 9, int) */
+    private static final long FICLONE = 0x40049409L;
+    private static final int SEEK_HOLE = 4;
+
+    private interface LibC extends Library {
+        int link(String oldpath, String newpath);
+
+        int open(String path, int flags, int mode);
+
+        int ioctl(int fd, NativeLong request, int arg);
+
+        NativeLong lseek(int fd, NativeLong offset, int whence);
+
+        int close(int fd);
+    }
+
+    private static LibC libc;
+    private static boolean loaded;
+
+    private static synchronized LibC libc() {
+        if (!loaded) {
+            loaded = true;
+            try {
+                if (FilePathUtils.isUnix()) {
+                    libc = (LibC) Native.loadLibrary("c", LibC.class);
+                }
+            } catch (Throwable t) {
+                libc = null;
+            }
+        }
+        return libc;
+    }
+
+    static boolean hardlink(File src, File dest) {
+        LibC c = libc();
+        if (c == null) {
+            return false;
+        }
+        dest.delete();
+        return c.link(src.getAbsolutePath(), dest.getAbsolutePath()) == 0;
+    }
+
+    static boolean reflink(File src, File dest, int mode) {
+        LibC c = libc();
+        if (c == null) {
+            return false;
+        }
+        int in = c.open(src.getAbsolutePath(), O_RDONLY, 0);
+        if (in < 0) {
+            return false;
+        }
+        try {
+            // dest may be a hardlink to a workspace file, never write through it
+            dest.delete();
+            int out = c.open(dest.getAbsolutePath(), O_WRONLY | O_CREAT | O_TRUNC, mode);
+            if (out < 0) {
+                return false;
+            }
+            boolean cloned = c.ioctl(out, new NativeLong(FICLONE), in) == 0;
+            c.close(out);
+            if (!cloned) {
+                dest.delete();
+            }
+            return cloned;
+        } finally {
+            c.close(in);
+        }
+    }
+
+    /**
+     * Whether <tt>file</tt> has a hole before its end. Filesystems without
+     * hole reporting treat every file as data, so they always say no.
+     */
+    static boolean hasHoles(File file) {
+        LibC c = libc();
+        if (c == null) {
+            return false;
+        }
+        int fd = c.open(file.getAbsolutePath(), O_RDONLY, 0);
+        if (fd < 0) {
+            return false;
+        }
+        try {
+            long hole = c.lseek(fd, new NativeLong(0), SEEK_HOLE).longValue();
+            return hole >= 0 && hole < file.length();
+        } catch (Throwable t) {
+            return false;
+        } finally {
+            c.close(fd);
+        }
+    }
+}
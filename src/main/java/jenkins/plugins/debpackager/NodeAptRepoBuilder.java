@@ -1,45 +1,90 @@
 package jenkins.plugins.debpackager;
 
+import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
-import hudson.tasks.Shell;
+import hudson.util.Secret;
 
 import java.io.IOException;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
 public class NodeAptRepoBuilder extends Builder {
-    String command = "\n"
-            + "echo DEB_PKG_NAME=$DEB_PKG_NAME \n"
-            + "echo DEBIAN_REPO_BUCKET=$DEBIAN_REPO_BUCKET \n"
-            + "echo DEBIAN_REPO_DISTRIBUTION=$DEBIAN_REPO_DISTRIBUTION \n"
-            + "echo DEB_REPO_SERVER_AND_PORT=$DEB_REPO_SERVER_AND_PORT \n"
-            + "echo PKG_CHAR=$PKG_CHAR \n"
-            + "echo PKG_NAME=$PKG_NAME \n"
-            + "cp .packaged.deb $DEB_PKG_NAME.deb \n"
-            + "s3cmd put $DEB_PKG_NAME.deb s3://$DEBIAN_REPO_BUCKET/ \n"
-            + "rm $DEB_PKG_NAME.deb \n"
-            + "curl http://$DEB_REPO_SERVER_AND_PORT/ubuntu/dists/$DEBIAN_REPO_DISTRIBUTION/main/add/$DEB_PKG_NAME.deb";
+
+    private final AsyncPublish asyncPublish;
 
     @DataBoundConstructor
-    public NodeAptRepoBuilder() {
+    public NodeAptRepoBuilder(AsyncPublish asyncPublish) {
+        this.asyncPublish = asyncPublish;
+    }
+
+    public AsyncPublish getAsyncPublish() {
+        return asyncPublish;
     }
 
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
             throws InterruptedException, IOException {
-        String fullName = build.getEnvironment(listener).get("DEB_PKG_NAME");
-        String pkgName = fullName.split("_")[0];
-        String pkgChar = String.valueOf(pkgName.charAt(0));
+        EnvVars env = build.getEnvironment(listener);
+        final String fullName = env.get("DEB_PKG_NAME");
+        String bucket = env.get("DEBIAN_REPO_BUCKET");
+        String distribution = env.get("DEBIAN_REPO_DISTRIBUTION");
+        String server = env.get("DEB_REPO_SERVER_AND_PORT");
+        final String deltaName = env.get("DEB_DELTA_NAME");
+        String packageFile = DebPackageAction.packageFile(env);
+        listener.getLogger().println("DEB_PKG_NAME=" + fullName);
+        listener.getLogger().println("DEBIAN_REPO_BUCKET=" + bucket);
+        listener.getLogger().println("DEBIAN_REPO_DISTRIBUTION=" + distribution);
+        listener.getLogger().println("DEB_REPO_SERVER_AND_PORT=" + server);
+        if (deltaName != null) {
+            listener.getLogger().println("DEB_DELTA_NAME=" + deltaName);
+        }
 
-        String com = command.replaceAll("\\$PKG_CHAR", pkgChar).replaceAll("\\$PKG_NAME", pkgName);
+        // optional, for S3 compatible stores other than AWS; credentials
+        // default to the node's ~/.s3cfg
+        String secretKey = env.get("AWS_SECRET_ACCESS_KEY");
+        final S3Uploader uploader = new S3Uploader(bucket, env.get("DEBIAN_REPO_S3_ENDPOINT"),
+                env.get("DEBIAN_REPO_S3_REGION"), env.get("AWS_ACCESS_KEY_ID"),
+                secretKey == null ? null : Secret.fromString(secretKey));
+        final String notifyUrl = server == null ? null : "http://" + server + "/ubuntu/dists/"
+                + distribution + "/main/add/" + fullName + ".deb";
 
-        return new Shell(com).perform(build, launcher, listener);
+        AsyncPublish.Task task = new AsyncPublish.Task() {
+            public boolean publish(FilePath dir, String packageFile, Launcher launcher,
+                    BuildListener listener) throws IOException, InterruptedException {
+                if (deltaName != null) {
+                    // uploaded first, so the delta is there once the package is announced
+                    S3Uploader.publish(dir, uploader, DebPackageAction.deltaFile(packageFile),
+                            deltaName + ".debdelta", null, listener);
+                }
+                S3Uploader.publish(dir, uploader, packageFile, fullName + ".deb", notifyUrl,
+                        listener);
+                return true;
+            }
+        };
+        try {
+            if (asyncPublish != null) {
+                asyncPublish.submit(build, "Node Apt Repo", env, task, listener);
+                return true;
+            }
+            PackagingTimingAction timings = PackagingTimingAction.of(build);
+            long start = System.nanoTime();
+            boolean published = task.publish(build.getWorkspace(), packageFile, launcher,
+                    listener);
+            timings.record("Node Apt Repo", "publish", start, 1, build.getWorkspace().child(
+                    packageFile).length());
+            listener.getLogger().println(timings.summary("Node Apt Repo"));
+            return published;
+        } catch (IOException e) {
+            e.printStackTrace(listener.getLogger());
+            return false;
+        }
     }
 
     @Override
@@ -0,0 +1,242 @@
+package jenkins.plugins.debpackager;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Content-addressed cache of finished packages on the node holding the
+ * workspace. Packages are stored once under their SHA256
+ * (<tt>objects/&lt;sha256&gt;.deb</tt>), and input fingerprints point at
+ * them (<tt>keys/&lt;fingerprint&gt;</tt>). When the cache grows past its
+ * size limit the least recently used packages are evicted.
+ */
+public class PackageCache extends AbstractDescribableImpl<PackageCache> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String directory;
+    private final String maxSize;
+
+    @DataBoundConstructor
+    public PackageCache(String directory, String maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Size limit in MB.
+     */
+    public String getMaxSize() {
+        return maxSize;
+    }
+
+    File root() {
+        if (directory == null || directory.trim().length() == 0) {
+            return new File(System.getProperty("user.home"), ".deb-packager/cache");
+        }
+        return new File(directory.trim());
+    }
+
+    long maxBytes() {
+        try {
+            return Long.parseLong(maxSize.trim()) * 1024 * 1024;
+        } catch (RuntimeException e) {
+            return 10L * 1024 * 1024 * 1024;
+        }
+    }
+
+    /**
+     * Fingerprints the package inputs: <tt>header</tt> (control fields,
+     * scripts, settings) plus path, size and contents of every file the copy
+     * rules match. Timestamps are not trusted; checkouts and restored
+     * workspaces rewrite them, and a touched but unchanged file would
+     * otherwise miss the cache while an edit within the same second could hit
+     * a stale package.
+     */
+    @SuppressWarnings("serial")
+    public static String fingerprint(FilePath workspace, List<CopyPath> copyPaths,
+            final String header) throws IOException, InterruptedException {
+        final List<CopyPath> paths = new ArrayList<CopyPath>();
+        if (copyPaths != null) {
+            paths.addAll(copyPaths);
+        }
+        return workspace.act(new FileCallable<String>() {
+            public String invoke(File f, VirtualChannel channel) throws IOException,
+                    InterruptedException {
+                MessageDigest digest = Digests.digest("SHA-256");
+                digest.update(header.getBytes("UTF-8"));
+                byte[] buf = new byte[65536];
+                List<List<String>> matches = WorkspaceScanner.scan(f, paths);
+                for (int i = 0; i < paths.size(); i++) {
+                    CopyPath path = paths.get(i);
+                    digest.update(path.toString().getBytes("UTF-8"));
+                    File base = path.workingPath(f);
+                    for (String file : matches.get(i)) {
+                        File src = new File(base, file);
+                        digest.update((file + "\t" + src.length() + "\n").getBytes("UTF-8"));
+                        InputStream in = new FileInputStream(src);
+                        try {
+                            int n;
+                            while ((n = in.read(buf)) >= 0) {
+                                digest.update(buf, 0, n);
+                            }
+                        } finally {
+                            in.close();
+                        }
+                    }
+                }
+                return Digests.hex(digest);
+            }
+        });
+    }
+
+    /**
+     * Materializes the package cached for <tt>key</tt> as <tt>target</tt> in
+     * the workspace.
+     *
+     * @return false on a cache miss
+     */
+    @SuppressWarnings("serial")
+    public boolean fetch(FilePath workspace, final String key, final String target)
+            throws IOException, InterruptedException {
+        final PackageCache cache = this;
+        return workspace.act(new FileCallable<Boolean>() {
+            public Boolean invoke(File f, VirtualChannel channel) throws IOException,
+                    InterruptedException {
+                return cache.fetch(key, new File(f, target));
+            }
+        });
+    }
+
+    /**
+     * Adds <tt>source</tt> from the workspace to the cache under <tt>key</tt>.
+     */
+    @SuppressWarnings("serial")
+    public void store(FilePath workspace, final String key, final String source)
+            throws IOException, InterruptedException {
+        final PackageCache cache = this;
+        workspace.act(new FileCallable<Void>() {
+            public Void invoke(File f, VirtualChannel channel) throws IOException,
+                    InterruptedException {
+                cache.store(key, new File(f, source));
+                return null;
+            }
+        });
+    }
+
+    boolean fetch(String key, File target) throws IOException, InterruptedException {
+        File keyFile = new File(root(), "keys/" + key);
+        if (!keyFile.isFile()) {
+            return false;
+        }
+        File object = new File(root(), "objects/" + FileUtils.readFileToString(keyFile).trim()
+                + ".deb");
+        if (!object.isFile()) {
+            keyFile.delete();
+            return false;
+        }
+        object.setLastModified(System.currentTimeMillis());
+        target.delete();
+        if (!NativeLinks.hardlink(object, target)) {
+            FileUtils.copyFile(object, target);
+        }
+        return true;
+    }
+
+    void store(String key, File deb) throws IOException, InterruptedException {
+        File objects = new File(root(), "objects");
+        File keys = new File(root(), "keys");
+        objects.mkdirs();
+        keys.mkdirs();
+
+        String sha256 = Digests.of(deb).sha256;
+        File object = new File(objects, sha256 + ".deb");
+        if (!object.isFile()) {
+            // a hardlink would share the read-only inode with the workspace
+            File tmp = new File(objects, sha256 + ".deb." + System.nanoTime());
+            if (!NativeLinks.reflink(deb, tmp, 0444)) {
+                FileUtils.copyFile(deb, tmp);
+            }
+            if (!tmp.renameTo(object)) {
+                tmp.delete();
+            }
+            object.setReadOnly();
+        }
+        File keyTmp = new File(keys, key + "." + System.nanoTime());
+        FileUtils.writeStringToFile(keyTmp, sha256);
+        if (!keyTmp.renameTo(new File(keys, key))) {
+            keyTmp.delete();
+        }
+        evict();
+    }
+
+    private void evict() {
+        // temporary files of concurrent stores are not objects yet
+        File[] objects = new File(root(), "objects").listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".deb");
+            }
+        });
+        if (objects == null) {
+            return;
+        }
+        long total = 0;
+        for (File object : objects) {
+            total += object.length();
+        }
+        long max = maxBytes();
+        if (total <= max) {
+            return;
+        }
+        Arrays.sort(objects, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File object : objects) {
+            if (total <= max) {
+                break;
+            }
+            long size = object.length();
+            if (object.delete()) {
+                total -= size;
+            }
+        }
+        // keys pointing at evicted objects are dropped lazily by fetch()
+    }
+
+    public String toString() {
+        return String.format("{directory: %s, maxSize: %s}", directory, maxSize);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<PackageCache> {
+        public String getDisplayName() {
+            return "Package Cache";
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package jenkins.plugins.debpackager;
+
+import hudson.model.Action;
+import hudson.model.AbstractBuild;
+import hudson.model.Api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * How long each packaging phase of a build took, and how much it moved. All
+ * packaging steps of a build record into the same action, which is also
+ * served as JSON/XML at <tt>packagingTimings/api/</tt>.
+ */
+@ExportedBean
+public class PackagingTimingAction implements Action {
+
+    private final List<Phase> phases = new ArrayList<Phase>();
+    private final List<Rule> rules = new ArrayList<Rule>();
+
+    @ExportedBean(defaultVisibility = 2)
+    public static class Phase {
+        private final String step;
+        private final String name;
+        private final long millis;
+        private final long files;
+        private final long bytes;
+
+        Phase(String step, String name, long millis, long files, long bytes) {
+            this.step = step;
+            this.name = name;
+            this.millis = millis;
+            this.files = files;
+            this.bytes = bytes;
+        }
+
+        @Exported
+        public String getStep() {
+            return step;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * Number of files handled, or -1 if the phase does not handle files.
+         */
+        @Exported
+        public long getFiles() {
+            return files;
+        }
+
+        /**
+         * Number of bytes handled, or -1 if not measured.
+         */
+        @Exported
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Exported
+        public double getMegabytesPerSecond() {
+            return megabytesPerSecond(bytes, millis);
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format("%s %.2fs", name, millis / 1000.0));
+            if (files >= 0 || bytes >= 0) {
+                sb.append(" (");
+                if (files >= 0) {
+                    sb.append(files).append(" file(s), ");
+                }
+                sb.append(String.format("%.1f MB, %.1f MB/s)", bytes / 1024.0 / 1024.0,
+                        getMegabytesPerSecond()));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * What a single copy rule contributed to the package.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static class Rule {
+        private final String rule;
+        private final long files;
+        private final long bytes;
+
+        Rule(String rule, long files, long bytes) {
+            this.rule = rule;
+            this.files = files;
+            this.bytes = bytes;
+        }
+
+        @Exported
+        public String getRule() {
+            return rule;
+        }
+
+        @Exported
+        public long getFiles() {
+            return files;
+        }
+
+        @Exported
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * The action of <tt>build</tt>, added on first use.
+     */
+    static synchronized PackagingTimingAction of(AbstractBuild<?, ?> build) {
+        PackagingTimingAction action = build.getAction(PackagingTimingAction.class);
+        if (action == null) {
+            action = new PackagingTimingAction();
+            build.addAction(action);
+        }
+        return action;
+    }
+
+    /**
+     * Records a phase of <tt>step</tt> that started at <tt>startNanos</tt>
+     * ({@link System#nanoTime()}) and ends now.
+     *
+     * @param files
+     *            files handled, or -1
+     * @param bytes
+     *            bytes handled, or -1
+     */
+    public Phase record(String step, String name, long startNanos, long files, long bytes) {
+        return add(step, name, (System.nanoTime() - startNanos) / 1000000, files, bytes);
+    }
+
+    /**
+     * Records a phase of <tt>step</tt> measured elsewhere, such as on the
+     * node holding the workspace.
+     */
+    public synchronized Phase add(String step, String name, long millis, long files,
+            long bytes) {
+        Phase phase = new Phase(step, name, millis, files, bytes);
+        phases.add(phase);
+        return phase;
+    }
+
+    public Phase record(String step, String name, long startNanos) {
+        return record(step, name, startNanos, -1, -1);
+    }
+
+    /**
+     * Records the per-rule counters of <tt>result</tt>.
+     */
+    public synchronized void recordRules(CopyResult result) {
+        for (Map.Entry<String, long[]> e : result.getRules().entrySet()) {
+            rules.add(new Rule(e.getKey(), e.getValue()[0], e.getValue()[1]));
+        }
+    }
+
+    @Exported
+    public synchronized List<Phase> getPhases() {
+        return new ArrayList<Phase>(phases);
+    }
+
+    @Exported
+    public synchronized List<Rule> getRules() {
+        return new ArrayList<Rule>(rules);
+    }
+
+    /**
+     * Total time of the phases of <tt>name</tt>, in milliseconds, or -1 if
+     * none were recorded.
+     */
+    public synchronized long getMillis(String name) {
+        long millis = -1;
+        for (Phase phase : phases) {
+            if (phase.getName().equals(name)) {
+                millis = Math.max(millis, 0) + phase.getMillis();
+            }
+        }
+        return millis;
+    }
+
+    @Exported
+    public synchronized long getTotalMillis() {
+        long millis = 0;
+        for (Phase phase : phases) {
+            millis += phase.getMillis();
+        }
+        return millis;
+    }
+
+    /**
+     * One line summary of the phases of <tt>step</tt>, for the build log.
+     */
+    public synchronized String summary(String step) {
+        StringBuilder sb = new StringBuilder(step + " timings:");
+        String separator = " ";
+        for (Phase phase : phases) {
+            if (phase.getStep().equals(step)) {
+                sb.append(separator).append(phase);
+                separator = ", ";
+            }
+        }
+        return sb.toString();
+    }
+
+    static double megabytesPerSecond(long bytes, long millis) {
+        return bytes <= 0 ? 0 : bytes / 1024.0 / 1024.0 / (Math.max(1, millis) / 1000.0);
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    public String getDisplayName() {
+        return "Packaging Timings";
+    }
+
+    public String getUrlName() {
+        return "packagingTimings";
+    }
+}
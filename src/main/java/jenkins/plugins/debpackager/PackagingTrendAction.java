@@ -0,0 +1,109 @@
+package jenkins.plugins.debpackager;
+
+import hudson.model.Action;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Api;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Packaging phase timings of a job's recent builds, served as a table and at
+ * <tt>packagingTrend/api/</tt>.
+ */
+@ExportedBean
+public class PackagingTrendAction implements Action {
+
+    /** Number of most recent builds looked at, with or without timings. */
+    static final int BUILDS = 30;
+
+    private final AbstractProject<?, ?> project;
+
+    public PackagingTrendAction(AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    public AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    /**
+     * Recent builds with timings, newest first.
+     */
+    @Exported(name = "builds")
+    public List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<Entry>();
+        int seen = 0;
+        // stop after the newest builds so older ones are never loaded from disk
+        for (AbstractBuild<?, ?> build : project.getBuilds()) {
+            if (seen++ >= BUILDS) {
+                break;
+            }
+            PackagingTimingAction timings = build.getAction(PackagingTimingAction.class);
+            if (timings != null) {
+                entries.add(new Entry(build, timings));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Names of all phases recorded in the shown builds, in first seen order.
+     */
+    public List<String> getPhaseNames() {
+        Set<String> names = new LinkedHashSet<String>();
+        for (Entry entry : getEntries()) {
+            for (PackagingTimingAction.Phase phase : entry.getTimings().getPhases()) {
+                names.add(phase.getName());
+            }
+        }
+        return new ArrayList<String>(names);
+    }
+
+    @ExportedBean(defaultVisibility = 2)
+    public static class Entry {
+        private final AbstractBuild<?, ?> build;
+        private final PackagingTimingAction timings;
+
+        Entry(AbstractBuild<?, ?> build, PackagingTimingAction timings) {
+            this.build = build;
+            this.timings = timings;
+        }
+
+        public AbstractBuild<?, ?> getBuild() {
+            return build;
+        }
+
+        @Exported
+        public int getNumber() {
+            return build.getNumber();
+        }
+
+        @Exported
+        public PackagingTimingAction getTimings() {
+            return timings;
+        }
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    public String getIconFileName() {
+        return "graph.png";
+    }
+
+    public String getDisplayName() {
+        return "Packaging Trend";
+    }
+
+    public String getUrlName() {
+        return "packagingTrend";
+    }
+}
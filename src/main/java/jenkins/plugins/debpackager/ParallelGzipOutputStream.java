@@ -0,0 +1,121 @@
+package jenkins.plugins.debpackager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compressor that splits its input into fixed size blocks and compresses
+ * them on a thread pool, each block as its own gzip member. Concatenated
+ * members form a valid gzip stream (RFC 1952), which zlib, dpkg and
+ * {@link java.util.zip.GZIPInputStream} all read transparently.
+ */
+class ParallelGzipOutputStream extends OutputStream {
+
+    static final int BLOCK_SIZE = 1 << 20;
+
+    private final OutputStream out;
+    private final int level;
+    private final int threads;
+    private final ExecutorService executor;
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int count;
+    private boolean wroteMember;
+    private boolean closed;
+
+    ParallelGzipOutputStream(OutputStream out, int level, int threads) {
+        this.out = out;
+        this.level = level;
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[count++] = (byte) b;
+        if (count == block.length) {
+            submit();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == block.length) {
+                submit();
+            }
+        }
+    }
+
+    private void submit() throws IOException {
+        final byte[] data = block;
+        final int length = count;
+        pending.add(executor.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return compress(data, length, level);
+            }
+        }));
+        wroteMember = true;
+        block = new byte[BLOCK_SIZE];
+        count = 0;
+        // bound memory: at most two blocks in flight per thread
+        while (pending.size() > threads * 2) {
+            drainOne();
+        }
+    }
+
+    private void drainOne() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+        } catch (InterruptedException e) {
+            throw (IOException) new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            throw (IOException) new IOException("Compression failed").initCause(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (count > 0 || !wroteMember) {
+                submit();
+            }
+            while (!pending.isEmpty()) {
+                drainOne();
+            }
+        } finally {
+            executor.shutdownNow();
+            out.close();
+        }
+    }
+
+    static byte[] compress(byte[] data, int length, final int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes) {
+            {
+                def.setLevel(level);
+            }
+        };
+        gzip.write(data, 0, length);
+        gzip.close();
+        return bytes.toByteArray();
+    }
+}
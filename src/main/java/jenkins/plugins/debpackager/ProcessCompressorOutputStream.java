@@ -0,0 +1,88 @@
+package jenkins.plugins.debpackager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Pipes everything written to it through an external compressor (xz, zstd)
+ * and copies the compressor's output to the wrapped stream.
+ */
+class ProcessCompressorOutputStream extends FilterOutputStream {
+
+    private final OutputStream target;
+    private final Process process;
+    private final Thread stdoutPump;
+    private final Thread stderrPump;
+    private final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+    private final List<String> command;
+    private IOException pumpFailure;
+    private boolean closed;
+
+    ProcessCompressorOutputStream(OutputStream target, String... command) throws IOException {
+        super(null);
+        this.target = target;
+        this.command = Arrays.asList(command);
+        this.process = new ProcessBuilder(command).start();
+        this.out = process.getOutputStream();
+
+        stdoutPump = new Thread("compressor stdout " + command[0]) {
+            public void run() {
+                try {
+                    IOUtils.copy(process.getInputStream(), ProcessCompressorOutputStream.this.target);
+                } catch (IOException e) {
+                    pumpFailure = e;
+                }
+            }
+        };
+        stderrPump = new Thread("compressor stderr " + command[0]) {
+            public void run() {
+                InputStream in = process.getErrorStream();
+                try {
+                    IOUtils.copy(in, stderr);
+                } catch (IOException e) {
+                    // only used for the error message
+                }
+            }
+        };
+        stdoutPump.start();
+        stderrPump.start();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+            stdoutPump.join();
+            stderrPump.join();
+            int exit = process.waitFor();
+            if (exit != 0) {
+                throw new IOException(command + " exited with " + exit + ": "
+                        + stderr.toString().trim());
+            }
+            if (pumpFailure != null) {
+                throw pumpFailure;
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            throw (IOException) new IOException("Interrupted while compressing").initCause(e);
+        } finally {
+            target.close();
+        }
+    }
+}
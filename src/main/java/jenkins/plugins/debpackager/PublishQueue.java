@@ -0,0 +1,154 @@
+package jenkins.plugins.debpackager;
+
+import hudson.FilePath;
+import hudson.model.Node;
+import hudson.remoting.AsyncFutureImpl;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Serializes updates of one repository target on the controller. Items
+ * submitted within {@link #WINDOW} of each other are published in one
+ * {@link #publish(List)} call instead of one full update each. If a batch
+ * fails, its items are retried one at a time so a single bad package only
+ * fails its own build.
+ *
+ * <p>
+ * Queues live as long as the controller, so they hold no remoting channel:
+ * the target is resolved from its node name for every batch, and all queues
+ * share {@link #WRITERS} threads.
+ */
+abstract class PublishQueue<T> {
+
+    /**
+     * How long a writer waits for more items before publishing, in
+     * milliseconds.
+     */
+    static final long WINDOW = Long.getLong(PublishQueue.class.getName() + ".window", 2000);
+
+    /** Targets published at the same time, over all queues. */
+    static final int WRITERS = Integer.getInteger(PublishQueue.class.getName() + ".writers", 4);
+
+    private static final ScheduledExecutorService WRITER = Executors.newScheduledThreadPool(
+            WRITERS, new DaemonThreadFactory());
+
+    private final List<Pending<T>> pending = new ArrayList<Pending<T>>();
+    /** Whether a flush is scheduled or running; at most one is. */
+    private boolean scheduled;
+
+    private static final class Pending<T> {
+        final T item;
+        final AsyncFutureImpl<String> result = new AsyncFutureImpl<String>();
+
+        Pending(T item) {
+            this.item = item;
+        }
+    }
+
+    /**
+     * Publishes a batch of items in one update.
+     *
+     * @return summary for the build log of every build in the batch
+     */
+    protected abstract String publish(List<T> batch) throws Exception;
+
+    /**
+     * Queues an item.
+     *
+     * @return completes with the update summary once the item is published
+     */
+    Future<String> submit(T item) {
+        Pending<T> p = new Pending<T>(item);
+        synchronized (this) {
+            pending.add(p);
+            if (!scheduled) {
+                scheduled = true;
+                schedule(WINDOW);
+            }
+        }
+        return p.result;
+    }
+
+    private void schedule(long delay) {
+        WRITER.schedule(new Runnable() {
+            public void run() {
+                try {
+                    flush();
+                } finally {
+                    synchronized (PublishQueue.this) {
+                        if (pending.isEmpty()) {
+                            scheduled = false;
+                        } else {
+                            // these waited for the last batch already
+                            schedule(0);
+                        }
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * <tt>path</tt> on the node called <tt>node</tt> (empty for the
+     * controller), through its current channel.
+     */
+    static FilePath resolve(String node, String path) throws IOException {
+        FilePath resolved = node(node).createPath(path);
+        if (resolved == null) {
+            throw new IOException("Node " + node + " is offline, cannot reach " + path);
+        }
+        return resolved;
+    }
+
+    /**
+     * The node called <tt>name</tt>, empty for the controller.
+     */
+    static Node node(String name) throws IOException {
+        Jenkins jenkins = Jenkins.getInstance();
+        Node node = name == null || name.length() == 0 ? jenkins : jenkins.getNode(name);
+        if (node == null) {
+            throw new IOException("Node " + name + " is gone");
+        }
+        return node;
+    }
+
+    private void flush() {
+        List<Pending<T>> batch;
+        synchronized (this) {
+            batch = new ArrayList<Pending<T>>(pending);
+            pending.clear();
+        }
+        List<T> items = new ArrayList<T>(batch.size());
+        for (Pending<T> p : batch) {
+            items.add(p.item);
+        }
+        try {
+            String summary = publish(items) + ", " + batch.size() + " added in this batch";
+            for (Pending<T> p : batch) {
+                p.result.set(summary);
+            }
+        } catch (Throwable t) {
+            if (batch.size() == 1) {
+                batch.get(0).result.set(t);
+                return;
+            }
+            for (Pending<T> p : batch) {
+                try {
+                    p.result.set(publish(Collections.singletonList(p.item)) + " (retried alone)");
+                } catch (Throwable alone) {
+                    p.result.set(alone);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package jenkins.plugins.debpackager;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.AbstractBuild;
+import hudson.model.Api;
+import hudson.model.listeners.RunListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Where the background publishing of a build's package stands, per repo
+ * step. The overall status is exported to later steps of the build as
+ * <tt>DEB_PUBLISH_STATUS</tt>, and served as JSON/XML at
+ * <tt>debPublish/api/</tt>.
+ */
+@ExportedBean
+public class PublishStatusAction implements Action, EnvironmentContributingAction {
+
+    static final String PENDING = "pending";
+    static final String PUBLISHED = "published";
+    static final String FAILED = "failed";
+
+    private static final Logger LOGGER = Logger.getLogger(PublishStatusAction.class.getName());
+
+    private final List<Step> steps = new ArrayList<Step>();
+    /** Whether Jenkins is done saving the build itself. */
+    private transient boolean finalized;
+    /** Whether a step finished that no save of the build has written yet. */
+    private transient boolean unsaved;
+
+    @ExportedBean(defaultVisibility = 2)
+    public static class Step {
+        private final String name;
+        private String status = PENDING;
+        private String log = "";
+
+        Step(String name) {
+            this.name = name;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public String getStatus() {
+            return status;
+        }
+
+        /**
+         * Output of the background publishing, once it is done.
+         */
+        @Exported(visibility = 3)
+        public String getLog() {
+            return log;
+        }
+    }
+
+    /**
+     * The action of <tt>build</tt>, added on first use.
+     */
+    static synchronized PublishStatusAction of(AbstractBuild<?, ?> build) {
+        PublishStatusAction action = build.getAction(PublishStatusAction.class);
+        if (action == null) {
+            action = new PublishStatusAction();
+            build.addAction(action);
+        }
+        return action;
+    }
+
+    synchronized void pending(String name) {
+        steps.add(new Step(name));
+    }
+
+    /**
+     * Records the outcome of the step <tt>name</tt> of <tt>build</tt>. A
+     * build that is done is saved right away; otherwise {@link Finalizer}
+     * saves it once Jenkins has saved it for the last time.
+     */
+    synchronized void finish(AbstractBuild<?, ?> build, String name, boolean published,
+            String log) {
+        for (Step step : steps) {
+            if (step.name.equals(name) && step.status.equals(PENDING)) {
+                step.status = published ? PUBLISHED : FAILED;
+                step.log = log;
+                break;
+            }
+        }
+        if (finalized) {
+            save(build);
+        } else {
+            unsaved = true;
+        }
+    }
+
+    private synchronized void finalized(AbstractBuild<?, ?> build) {
+        finalized = true;
+        if (unsaved) {
+            save(build);
+        }
+    }
+
+    /**
+     * Saves <tt>build</tt> holding this action's lock, so no step changes
+     * while it is written.
+     */
+    private synchronized void save(AbstractBuild<?, ?> build) {
+        try {
+            build.save();
+            unsaved = false;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save " + build, e);
+        }
+    }
+
+    /**
+     * Failed if any step failed, pending while any step is pending,
+     * published otherwise.
+     */
+    @Exported
+    public synchronized String getStatus() {
+        String status = PUBLISHED;
+        for (Step step : steps) {
+            if (step.status.equals(FAILED)) {
+                return FAILED;
+            } else if (step.status.equals(PENDING)) {
+                status = PENDING;
+            }
+        }
+        return status;
+    }
+
+    @Exported
+    public synchronized List<Step> getSteps() {
+        return new ArrayList<Step>(steps);
+    }
+
+    public void buildEnvVars(AbstractBuild<?, ?> build, EnvVars env) {
+        env.put("DEB_PUBLISH_STATUS", getStatus());
+    }
+
+    /**
+     * Publishing does not survive a restart, so a step still pending when
+     * the build is loaded again never finished.
+     */
+    private Object readResolve() {
+        for (Step step : steps) {
+            if (step.status.equals(PENDING)) {
+                step.status = FAILED;
+                step.log = "Jenkins was restarted before the package was published";
+            }
+        }
+        return this;
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    public String getIconFileName() {
+        return "package.png";
+    }
+
+    public String getDisplayName() {
+        return "Package Publishing";
+    }
+
+    public String getUrlName() {
+        return "debPublish";
+    }
+
+    /**
+     * Saves what background publishing finished while the build was still
+     * running, after the build's own last save.
+     */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static class Finalizer extends RunListener<AbstractBuild> {
+
+        public Finalizer() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onFinalized(AbstractBuild build) {
+            PublishStatusAction action = build.getAction(PublishStatusAction.class);
+            if (action != null) {
+                action.finalized(build);
+            }
+        }
+    }
+}
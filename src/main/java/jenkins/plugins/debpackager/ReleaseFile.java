@@ -0,0 +1,315 @@
+package jenkins.plugins.debpackager;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The <tt>Release</tt> file of one distribution, with <tt>InRelease</tt> and
+ * <tt>Release.gpg</tt> when a signing key is given. Only index files changed
+ * since the last <tt>Release</tt> are hashed, in parallel; the others keep
+ * their entries. Every index is also published under
+ * <tt>by-hash/SHA256/</tt>, so clients following <tt>Acquire-By-Hash</tt>
+ * always fetch indices matching the <tt>Release</tt> they have, and the
+ * {@link #KEEP} newest copies of each index are kept.
+ */
+class ReleaseFile {
+
+    /** By-hash copies kept per index, beyond the ones the Release lists. */
+    static final int KEEP = Integer.getInteger(ReleaseFile.class.getName() + ".keep", 3);
+
+    private static final String[] SIGNATURES = { "Release", "InRelease", "Release.gpg" };
+
+    private final File dist;
+    private final String distribution;
+    private final PrintStream log;
+
+    ReleaseFile(File dist, String distribution, PrintStream log) {
+        this.dist = dist;
+        this.distribution = distribution;
+        this.log = log;
+    }
+
+    /**
+     * Hashes <tt>changed</tt> (index path relative to the distribution,
+     * mapped to the new contents) and any other index modified since the
+     * last <tt>Release</tt>. Call before installing the changed files.
+     */
+    Map<String, Digests> hash(Map<String, File> changed) throws IOException,
+            InterruptedException {
+        Map<String, Digests> hashes = new TreeMap<String, Digests>();
+        Map<String, File> toHash = new HashMap<String, File>(changed);
+        Map<String, Digests> previous = readPrevious();
+        File release = new File(dist, "Release");
+        for (String path : indices()) {
+            if (changed.containsKey(path)) {
+                continue;
+            }
+            File file = new File(dist, path);
+            Digests old = previous.get(path);
+            if (old != null && old.size == file.length()
+                    && file.lastModified() < release.lastModified()) {
+                hashes.put(path, old);
+            } else {
+                toHash.put(path, file);
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(toHash.size(),
+                Runtime.getRuntime().availableProcessors())), new DaemonThreadFactory());
+        try {
+            Map<String, Future<Digests>> futures = new HashMap<String, Future<Digests>>();
+            for (final Map.Entry<String, File> e : toHash.entrySet()) {
+                futures.put(e.getKey(), pool.submit(new Callable<Digests>() {
+                    public Digests call() throws IOException {
+                        return Digests.of(e.getValue());
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<Digests>> e : futures.entrySet()) {
+                try {
+                    hashes.put(e.getKey(), e.getValue().get());
+                } catch (ExecutionException x) {
+                    throw new IOException("Failed to hash " + e.getKey(), x.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        log.println("Hashed " + toHash.size() + " of " + hashes.size() + " index file(s) of "
+                + distribution);
+        return hashes;
+    }
+
+    /**
+     * Publishes <tt>changed</tt> under <tt>by-hash/SHA256/</tt> next to the
+     * index it will replace.
+     */
+    void installByHash(Map<String, File> changed, Map<String, Digests> hashes)
+            throws IOException, InterruptedException {
+        for (Map.Entry<String, File> e : changed.entrySet()) {
+            File target = new File(byHash(e.getKey()), hashes.get(e.getKey()).sha256);
+            if (!target.isFile()) {
+                FilePathUtils.sudo("mkdir", "-p", target.getParent());
+                FilePathUtils.sudoInstall(e.getValue(), target);
+            }
+        }
+    }
+
+    /**
+     * Writes and installs <tt>Release</tt>, and signs it with
+     * <tt>signingKey</tt> unless that is null.
+     */
+    void write(Map<String, Digests> hashes, String signingKey) throws IOException,
+            InterruptedException {
+        Set<String> architectures = new TreeSet<String>();
+        Set<String> components = new TreeSet<String>();
+        for (String path : hashes.keySet()) {
+            String[] parts = path.split("/");
+            if (parts.length > 2 && parts[1].startsWith("binary-")) {
+                components.add(parts[0]);
+                architectures.add(parts[1].substring("binary-".length()));
+            }
+        }
+        SimpleDateFormat date = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'UTC'",
+                Locale.US);
+        date.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Suite: ").append(distribution).append('\n');
+        sb.append("Codename: ").append(distribution).append('\n');
+        sb.append("Date: ").append(date.format(new Date())).append('\n');
+        sb.append("Architectures: ").append(join(architectures)).append('\n');
+        sb.append("Components: ").append(join(components)).append('\n');
+        sb.append("Acquire-By-Hash: yes\n");
+        sb.append("MD5Sum:\n");
+        for (Map.Entry<String, Digests> e : hashes.entrySet()) {
+            entry(sb, e.getValue().md5, e.getValue().size, e.getKey());
+        }
+        sb.append("SHA1:\n");
+        for (Map.Entry<String, Digests> e : hashes.entrySet()) {
+            entry(sb, e.getValue().sha1, e.getValue().size, e.getKey());
+        }
+        sb.append("SHA256:\n");
+        for (Map.Entry<String, Digests> e : hashes.entrySet()) {
+            entry(sb, e.getValue().sha256, e.getValue().size, e.getKey());
+        }
+
+        File tmp = File.createTempFile("Release", "");
+        File inRelease = new File(tmp.getPath() + ".in");
+        File detached = new File(tmp.getPath() + ".gpg");
+        try {
+            FileUtils.writeStringToFile(tmp, sb.toString(), "UTF-8");
+            if (signingKey != null) {
+                gpg(signingKey, "--clearsign", "-o", inRelease.getPath(), tmp.getPath());
+                gpg(signingKey, "--detach-sign", "--armor", "-o", detached.getPath(), tmp
+                        .getPath());
+                // apt prefers InRelease, which is replaced in one rename;
+                // Release and its detached signature follow right after
+                FilePathUtils.sudoInstall(inRelease, new File(dist, "InRelease"));
+            }
+            FilePathUtils.sudoInstall(tmp, new File(dist, "Release"));
+            if (signingKey != null) {
+                FilePathUtils.sudoInstall(detached, new File(dist, "Release.gpg"));
+            }
+        } finally {
+            tmp.delete();
+            inRelease.delete();
+            detached.delete();
+        }
+        log.println("Updated " + new File(dist, "Release") + (signingKey == null ? " (unsigned)"
+                : " and InRelease"));
+    }
+
+    /**
+     * Removes by-hash copies beyond the {@link #KEEP} newest of each index,
+     * never one the current <tt>Release</tt> lists.
+     */
+    void prune(Map<String, Digests> hashes) throws IOException, InterruptedException {
+        Set<String> directories = new HashSet<String>();
+        Set<String> listed = new HashSet<String>();
+        for (Map.Entry<String, Digests> e : hashes.entrySet()) {
+            directories.add(byHash(e.getKey()).getPath());
+            listed.add(e.getValue().sha256);
+        }
+        List<String> stale = new ArrayList<String>();
+        for (String directory : directories) {
+            File[] copies = new File(directory).listFiles();
+            if (copies == null || copies.length <= KEEP) {
+                continue;
+            }
+            Arrays.sort(copies, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    long diff = b.lastModified() - a.lastModified();
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+            });
+            for (int i = KEEP; i < copies.length; i++) {
+                if (!listed.contains(copies[i].getName())) {
+                    stale.add(copies[i].getAbsolutePath());
+                }
+            }
+        }
+        if (!stale.isEmpty()) {
+            stale.add(0, "rm");
+            stale.add(1, "-f");
+            FilePathUtils.sudo(stale.toArray(new String[stale.size()]));
+            log.println("Pruned " + (stale.size() - 2) + " by-hash copies");
+        }
+    }
+
+    /**
+     * Index files of the distribution, relative to it.
+     */
+    private List<String> indices() {
+        List<String> paths = new ArrayList<String>();
+        collect(dist, "", paths);
+        return paths;
+    }
+
+    private static void collect(File dir, String prefix, List<String> paths) {
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            File file = new File(dir, name);
+            if (file.isDirectory()) {
+                if (!name.equals("by-hash")) {
+                    collect(file, prefix + name + "/", paths);
+                }
+            } else if (!name.endsWith(".new")
+                    && (prefix.length() > 0 || !Arrays.asList(SIGNATURES).contains(name))) {
+                paths.add(prefix + name);
+            }
+        }
+    }
+
+    private Map<String, Digests> readPrevious() throws IOException {
+        Map<String, Digests> previous = new HashMap<String, Digests>();
+        List<Map<String, String>> stanzas = DebControl.parse(new File(dist, "Release"));
+        if (stanzas.isEmpty()) {
+            return previous;
+        }
+        Map<String, String[]> md5 = entries(stanzas.get(0).get("MD5Sum"));
+        Map<String, String[]> sha1 = entries(stanzas.get(0).get("SHA1"));
+        Map<String, String[]> sha256 = entries(stanzas.get(0).get("SHA256"));
+        for (Map.Entry<String, String[]> e : sha256.entrySet()) {
+            String path = e.getKey();
+            if (md5.containsKey(path) && sha1.containsKey(path)) {
+                previous.put(path, new Digests(Long.parseLong(e.getValue()[1]),
+                        md5.get(path)[0], sha1.get(path)[0], e.getValue()[0]));
+            }
+        }
+        return previous;
+    }
+
+    private static Map<String, String[]> entries(String field) {
+        Map<String, String[]> entries = new HashMap<String, String[]>();
+        if (field != null) {
+            for (String line : field.split("\n")) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length == 3) {
+                    entries.put(parts[2], parts);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private File byHash(String path) {
+        return new File(new File(dist, path).getParentFile(), "by-hash/SHA256");
+    }
+
+    private static void entry(StringBuilder sb, String hash, long size, String path) {
+        sb.append(String.format(" %s %16d %s\n", hash, size, path));
+    }
+
+    private static String join(Set<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    private static void gpg(String key, String... args) throws IOException,
+            InterruptedException {
+        List<String> cmd = new ArrayList<String>(Arrays.asList("gpg", "--batch", "--yes",
+                "--digest-algo", "SHA256", "--local-user", key));
+        cmd.addAll(Arrays.asList(args));
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        p.getOutputStream().close();
+        String output = IOUtils.toString(p.getInputStream());
+        if (p.waitFor() != 0) {
+            throw new IOException("gpg failed: " + output.trim());
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package jenkins.plugins.debpackager;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-memory view of a repository's <tt>Packages</tt> index, kept on the
+ * controller for form validation and version numbering. Only names and
+ * versions are held, as one sorted array per package, so lookups never touch
+ * the repository. Virtual packages count as present with the versions of
+ * their providers.
+ *
+ * <p>
+ * The index is loaded on first use and reloaded in the background once it is
+ * older than its time to live; until then lookups are answered from the
+ * previous copy.
+ *
+ * <p>
+ * Versions handed out by {@link #nextVersion} count as present until they
+ * are published, their build fails and {@link #release} gives them back, or
+ * they are older than {@link #RESERVATION_HOURS}.
+ */
+class RepositoryIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(RepositoryIndex.class.getName());
+
+    /** Token in the version format replaced by the next unpublished number. */
+    static final String NEXT_VERSION = "${NEXT_VERSION}";
+
+    private static final Pattern RELATION = Pattern
+            .compile("^([a-z0-9][a-z0-9+.-]*)(?::[a-z0-9-]+)?\\s*(?:\\(\\s*(<<|<=|=|>=|>>|<|>)\\s*([^)\\s]+)\\s*\\))?\\s*(?:\\[[^\\]]*\\])?\\s*(?:<[^>]*>\\s*)*$");
+
+    private static final Pattern NUMBER = Pattern.compile("^\\d+");
+
+    /** Hours a version handed out but never published stays reserved. */
+    static final long RESERVATION_HOURS = Long.getLong(RepositoryIndex.class.getName()
+            + ".reservationHours", 24);
+
+    private static final ExecutorService REFRESHER = Executors
+            .newSingleThreadExecutor(new DaemonThreadFactory());
+
+    private static final Map<String, RepositoryIndex> INDICES = new HashMap<String, RepositoryIndex>();
+
+    private final String location;
+    /** Published versions, then those of {@link #reserved} on top. */
+    private volatile Map<String, String[]> versions;
+    private volatile Map<String, String[]> published;
+    private volatile long loaded;
+    private boolean refreshing;
+    /**
+     * Versions handed out by {@link #nextVersion} that are not published yet,
+     * with the time they were reserved at.
+     */
+    private final Map<String, Map<String, Long>> reserved =
+            new HashMap<String, Map<String, Long>>();
+
+    private RepositoryIndex(String location) {
+        this.location = location;
+    }
+
+    /**
+     * The index of the <tt>Packages</tt> or <tt>Packages.gz</tt> file at
+     * <tt>location</tt>, a URL or a path on the controller.
+     */
+    static synchronized RepositoryIndex get(String location) {
+        RepositoryIndex index = INDICES.get(location);
+        if (index == null) {
+            index = new RepositoryIndex(location);
+            INDICES.put(location, index);
+        }
+        return index;
+    }
+
+    /**
+     * Published versions of <tt>pkg</tt>, oldest first, from an index no
+     * older than <tt>ttlMillis</tt> if possible. Only the first load blocks.
+     */
+    String[] versions(String pkg, long ttlMillis) throws IOException {
+        Map<String, String[]> current = versions;
+        if (current == null) {
+            current = load();
+        } else if (System.currentTimeMillis() - loaded > ttlMillis) {
+            refreshInBackground();
+        }
+        String[] found = current.get(pkg);
+        return found == null ? new String[0] : found;
+    }
+
+    /**
+     * Reloads the index now if it is older than <tt>ttlMillis</tt>, always with 0.
+     */
+    void refresh(long ttlMillis) throws IOException {
+        if (versions == null || System.currentTimeMillis() - loaded >= ttlMillis) {
+            load();
+        }
+    }
+
+    private synchronized void refreshInBackground() {
+        if (refreshing) {
+            return;
+        }
+        refreshing = true;
+        REFRESHER.submit(new Runnable() {
+            public void run() {
+                try {
+                    load();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to reload " + location, e);
+                } finally {
+                    synchronized (RepositoryIndex.this) {
+                        refreshing = false;
+                    }
+                }
+            }
+        });
+    }
+
+    private Map<String, String[]> load() throws IOException {
+        long start = System.currentTimeMillis();
+        Map<String, List<String>> lists = new HashMap<String, List<String>>();
+        InputStream in = open();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            String pkg = null;
+            String version = null;
+            String provides = null;
+            String line;
+            do {
+                line = reader.readLine();
+                if (line == null || line.length() == 0) {
+                    if (pkg != null && version != null) {
+                        add(lists, pkg, version);
+                        if (provides != null) {
+                            for (String provided : provides.split(",")) {
+                                add(lists, provided.trim().split("[\\s(]")[0], version);
+                            }
+                        }
+                    }
+                    pkg = version = provides = null;
+                } else if (line.startsWith("Package:")) {
+                    pkg = line.substring(8).trim();
+                } else if (line.startsWith("Version:")) {
+                    version = line.substring(8).trim();
+                } else if (line.startsWith("Provides:")) {
+                    provides = line.substring(9).trim();
+                }
+            } while (line != null);
+        } finally {
+            in.close();
+        }
+
+        Map<String, String[]> index = new HashMap<String, String[]>(lists.size() * 2);
+        for (Map.Entry<String, List<String>> e : lists.entrySet()) {
+            String[] sorted = e.getValue().toArray(new String[e.getValue().size()]);
+            Arrays.sort(sorted, DebVersion.COMPARATOR);
+            index.put(e.getKey(), sorted);
+        }
+        synchronized (this) {
+            published = index;
+            long expired = System.currentTimeMillis() - RESERVATION_HOURS * 60 * 60 * 1000;
+            for (Iterator<Map.Entry<String, Map<String, Long>>> it = reserved.entrySet()
+                    .iterator(); it.hasNext();) {
+                Map.Entry<String, Map<String, Long>> e = it.next();
+                String[] found = index.get(e.getKey());
+                List<String> present = found == null ? new ArrayList<String>() : Arrays
+                        .asList(found);
+                for (Iterator<Map.Entry<String, Long>> v = e.getValue().entrySet().iterator(); v
+                        .hasNext();) {
+                    Map.Entry<String, Long> version = v.next();
+                    if (present.contains(version.getKey()) || version.getValue() < expired) {
+                        v.remove();
+                    }
+                }
+                if (e.getValue().isEmpty()) {
+                    it.remove();
+                }
+            }
+            versions = withReserved(index);
+            loaded = System.currentTimeMillis();
+        }
+        LOGGER.fine("Loaded " + index.size() + " packages from " + location + " in "
+                + (loaded - start) + " ms");
+        return index;
+    }
+
+    private InputStream open() throws IOException {
+        InputStream in;
+        if (location.matches("^[a-z]+://.*")) {
+            URLConnection connection = new URL(location).openConnection();
+            connection.setConnectTimeout(10000);
+            connection.setReadTimeout(60000);
+            in = connection.getInputStream();
+        } else {
+            in = new FileInputStream(new File(location));
+        }
+        return location.endsWith(".gz") ? new GZIPInputStream(in) : in;
+    }
+
+    private static void add(Map<String, List<String>> lists, String pkg, String version) {
+        List<String> list = lists.get(pkg);
+        if (list == null) {
+            list = new ArrayList<String>(1);
+            lists.put(pkg, list);
+        }
+        if (!list.contains(version)) {
+            list.add(version);
+        }
+    }
+
+    /**
+     * Records <tt>version</tt> as taken by a build, so the next
+     * {@link #nextVersion} does not hand it out again before it shows up in
+     * the repository.
+     */
+    synchronized void reserve(String pkg, String version) {
+        Map<String, Long> taken = reserved.get(pkg);
+        if (taken == null) {
+            taken = new HashMap<String, Long>();
+            reserved.put(pkg, taken);
+        }
+        taken.put(version, System.currentTimeMillis());
+        if (published != null) {
+            versions = withReserved(published);
+        }
+    }
+
+    /**
+     * Gives back <tt>version</tt> of <tt>pkg</tt> reserved for a build that
+     * will not publish it, so the next build gets the same number. Versions
+     * already in the repository stay taken.
+     */
+    synchronized void release(String pkg, String version) {
+        Map<String, Long> taken = reserved.get(pkg);
+        if (taken == null || taken.remove(version) == null) {
+            return;
+        }
+        if (taken.isEmpty()) {
+            reserved.remove(pkg);
+        }
+        if (published != null) {
+            versions = withReserved(published);
+        }
+    }
+
+    /**
+     * <tt>index</tt> with the reserved versions added, sharing the arrays of
+     * packages without any.
+     */
+    private Map<String, String[]> withReserved(Map<String, String[]> index) {
+        if (reserved.isEmpty()) {
+            return index;
+        }
+        Map<String, String[]> all = new HashMap<String, String[]>(index);
+        for (Map.Entry<String, Map<String, Long>> e : reserved.entrySet()) {
+            Set<String> taken = e.getValue().keySet();
+            all.put(e.getKey(), merge(index.get(e.getKey()), taken.toArray(new String[taken
+                    .size()])));
+        }
+        return all;
+    }
+
+    private static String[] merge(String[] a, String[] b) {
+        List<String> all = new ArrayList<String>();
+        if (a != null) {
+            all.addAll(Arrays.asList(a));
+        }
+        for (String version : b) {
+            if (!all.contains(version)) {
+                all.add(version);
+            }
+        }
+        String[] sorted = all.toArray(new String[all.size()]);
+        Arrays.sort(sorted, DebVersion.COMPARATOR);
+        return sorted;
+    }
+
+    /**
+     * Resolves {@link #NEXT_VERSION} in <tt>format</tt> to one more than the
+     * highest number following the same prefix in a published version of
+     * <tt>pkg</tt>, or 1 if there is none. <tt>1.2.${NEXT_VERSION}</tt>
+     * becomes <tt>1.2.8</tt> when <tt>1.2.7</tt> is the latest 1.2 release.
+     * The version is reserved for this build.
+     */
+    synchronized String nextVersion(String pkg, String format, long ttlMillis)
+            throws IOException {
+        int token = format.indexOf(NEXT_VERSION);
+        if (token < 0) {
+            return format;
+        }
+        refresh(ttlMillis);
+        String prefix = format.substring(0, token);
+        String suffix = format.substring(token + NEXT_VERSION.length());
+        BigInteger next = BigInteger.ONE;
+        for (String version : versions(pkg, ttlMillis)) {
+            if (!version.startsWith(prefix)) {
+                continue;
+            }
+            Matcher m = NUMBER.matcher(version.substring(prefix.length()));
+            if (m.find()) {
+                BigInteger n = new BigInteger(m.group()).add(BigInteger.ONE);
+                if (n.compareTo(next) > 0) {
+                    next = n;
+                }
+            }
+        }
+        String version = prefix + next + suffix.replace(NEXT_VERSION, next.toString());
+        reserve(pkg, version);
+        return version;
+    }
+
+    /**
+     * Checks a <tt>Depends</tt> value against the index.
+     *
+     * @return one message per relation no published package satisfies
+     */
+    List<String> check(String depends, long ttlMillis) throws IOException {
+        List<String> problems = new ArrayList<String>();
+        for (String relation : depends.split(",")) {
+            relation = relation.trim();
+            if (relation.length() == 0 || relation.contains("$")) {
+                // parameters are only known at build time
+                continue;
+            }
+            boolean satisfied = false;
+            List<String> reasons = new ArrayList<String>();
+            for (String alternative : relation.split("\\|")) {
+                alternative = alternative.trim();
+                Matcher m = RELATION.matcher(alternative);
+                if (!m.matches()) {
+                    reasons.add("'" + alternative + "' is not a valid relation");
+                    continue;
+                }
+                String[] published = versions(m.group(1), ttlMillis);
+                if (published.length == 0) {
+                    reasons.add(m.group(1) + " is not in the repository");
+                    continue;
+                }
+                if (m.group(2) == null) {
+                    satisfied = true;
+                    break;
+                }
+                for (String version : published) {
+                    if (DebVersion.satisfies(version, m.group(2), m.group(3))) {
+                        satisfied = true;
+                        break;
+                    }
+                }
+                if (satisfied) {
+                    break;
+                }
+                reasons.add("no version of " + m.group(1) + " is " + m.group(2) + " "
+                        + m.group(3) + " (latest " + published[published.length - 1] + ")");
+            }
+            if (!satisfied) {
+                problems.add(relation + ": " + join(reasons));
+            }
+        }
+        return problems;
+    }
+
+    private static String join(List<String> parts) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+}
@@ -1,40 +1,220 @@
 package jenkins.plugins.debpackager;
 
+import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.io.IOUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 public class RepreproBuilder extends Builder {
 
+    static final String DEFAULT_BASE_DIR = "/var/lib/reprepro";
+    static final String DEFAULT_CODENAME = "livefyre";
+
+    private final String baseDir;
+    private final String codename;
+    private final boolean batch;
+    private final AsyncPublish asyncPublish;
+
     @DataBoundConstructor
-    public RepreproBuilder() {
+    public RepreproBuilder(String baseDir, String codename, boolean batch,
+            AsyncPublish asyncPublish) {
+        this.baseDir = baseDir;
+        this.codename = codename;
+        this.batch = batch;
+        this.asyncPublish = asyncPublish;
+    }
+
+    public String getBaseDir() {
+        return Util.fixEmptyAndTrim(baseDir) == null ? DEFAULT_BASE_DIR : baseDir.trim();
+    }
+
+    public String getCodename() {
+        return Util.fixEmptyAndTrim(codename) == null ? DEFAULT_CODENAME : codename.trim();
+    }
+
+    public boolean isBatch() {
+        return batch;
+    }
+
+    public AsyncPublish getAsyncPublish() {
+        return asyncPublish;
     }
 
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
-        int retval = -1;
         listener.getLogger().println("Deb Packager - adding package to reprepro...");
+        boolean result = false;
         try {
-            retval = launcher
-                    .launch()
-                    .cmds(new String[] { "reprepro", "--keepunreferencedfiles", "-Vb",
-                            "/var/lib/reprepro", "includedeb", "livefyre", ".packaged.deb" })
-                    .envs(build.getEnvironment(listener)).stdout(listener)
-                    .pwd(build.getWorkspace()).join();
+            final EnvVars env = build.getEnvironment(listener);
+            final String node = build.getBuiltOnStr();
+            final String name = env.get("BUILD_TAG", "build-" + build.getNumber()) + ".deb";
+            String packageFile = DebPackageAction.packageFile(env);
+            AsyncPublish.Task task = new AsyncPublish.Task() {
+                public boolean publish(FilePath dir, String packageFile, Launcher launcher,
+                        BuildListener listener) throws IOException, InterruptedException {
+                    return batch ? performBatch(node, dir, packageFile, name, listener)
+                            : performSingle(env, dir, packageFile, launcher, listener);
+                }
+            };
+            if (asyncPublish != null) {
+                asyncPublish.submit(build, "Reprepro", env, task, listener);
+                result = true;
+            } else {
+                PackagingTimingAction timings = PackagingTimingAction.of(build);
+                long start = System.nanoTime();
+                result = task.publish(build.getWorkspace(), packageFile, launcher, listener);
+                timings.record("Reprepro", "publish", start, 1, build.getWorkspace().child(
+                        packageFile).length());
+                listener.getLogger().println(timings.summary("Reprepro"));
+            }
         } catch (Exception e) {
             e.printStackTrace(listener.getLogger());
         }
 
         listener.getLogger().println("Deb Packager - finished reprepro");
+        return result;
+    }
+
+    /**
+     * Includes <tt>packageFile</tt>, relative to <tt>dir</tt>, on its own.
+     */
+    private boolean performSingle(EnvVars env, FilePath dir, String packageFile,
+            Launcher launcher, BuildListener listener) throws IOException,
+            InterruptedException {
+        int retval = launcher
+                .launch()
+                .cmds(new String[] { "reprepro", "--keepunreferencedfiles", "-Vb", getBaseDir(),
+                        "includedeb", getCodename(), packageFile }).envs(env).stdout(listener)
+                .pwd(dir).join();
         return retval == 0;
     }
 
+    /**
+     * Copies <tt>packageFile</tt>, relative to <tt>dir</tt>, into the
+     * incoming directory as <tt>name</tt> and waits for the batch holding it
+     * to be included and exported.
+     */
+    @SuppressWarnings("serial")
+    private boolean performBatch(String node, FilePath dir, final String packageFile,
+            final String name, BuildListener listener) throws IOException,
+            InterruptedException {
+        final String incoming = new File(getBaseDir(), "incoming").getPath();
+        final String path = dir.act(new FileCallable<String>() {
+            public String invoke(File f, VirtualChannel channel) throws IOException,
+                    InterruptedException {
+                File dir = new File(incoming);
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Failed to create " + dir);
+                }
+                File target = new File(dir, name);
+                FilePathUtils.copyWithPermissions(new File(f, packageFile), target);
+                return target.getPath();
+            }
+        });
+
+        listener.getLogger().println("Waiting for the " + getCodename() + " batch");
+        IncludeQueue queue = IncludeQueue.get(node, getBaseDir(), getCodename());
+        try {
+            listener.getLogger().println(queue.submit(path).get());
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to add " + name + " to " + getCodename(), e.getCause());
+        }
+        return true;
+    }
+
+    /**
+     * Feeds the packages of concurrent builds to reprepro in one
+     * <tt>includedeb</tt>, and regenerates the exports once per batch. The
+     * base directory is looked up on its node for every batch.
+     */
+    static final class IncludeQueue extends PublishQueue<String> {
+
+        private static final Map<String, IncludeQueue> QUEUES = new HashMap<String, IncludeQueue>();
+
+        private final String node;
+        private final String baseDir;
+        private final String codename;
+
+        private IncludeQueue(String node, String baseDir, String codename) {
+            this.node = node;
+            this.baseDir = baseDir;
+            this.codename = codename;
+        }
+
+        static synchronized IncludeQueue get(String node, String baseDir, String codename) {
+            String key = node + ":" + baseDir + ":" + codename;
+            IncludeQueue queue = QUEUES.get(key);
+            if (queue == null) {
+                queue = new IncludeQueue(node, baseDir, codename);
+                QUEUES.put(key, queue);
+            }
+            return queue;
+        }
+
+        @SuppressWarnings("serial")
+        @Override
+        protected String publish(final List<String> batch) throws IOException,
+                InterruptedException {
+            final String codename = this.codename;
+            return resolve(node, baseDir).act(new FileCallable<String>() {
+                public String invoke(File f, VirtualChannel channel) throws IOException,
+                        InterruptedException {
+                    List<String> include = new ArrayList<String>(Arrays.asList("reprepro",
+                            "--keepunreferencedfiles", "--export=never", "-Vb",
+                            f.getAbsolutePath(), "includedeb", codename));
+                    include.addAll(batch);
+                    StringBuilder log = new StringBuilder();
+                    boolean included = false;
+                    try {
+                        run(include, log);
+                        run(Arrays.asList("reprepro", "-Vb", f.getAbsolutePath(), "export",
+                                codename), log);
+                        included = true;
+                    } finally {
+                        // a failed batch is retried one package at a time
+                        if (included || batch.size() == 1) {
+                            for (String deb : batch) {
+                                new File(deb).delete();
+                            }
+                        }
+                    }
+                    return log.toString().trim();
+                }
+            });
+        }
+
+        private static void run(List<String> command, StringBuilder log) throws IOException,
+                InterruptedException {
+            Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+            log.append(IOUtils.toString(p.getInputStream()));
+            int exit = p.waitFor();
+            if (exit != 0) {
+                throw new IOException(command + " exited with " + exit + ": "
+                        + log.toString().trim());
+            }
+        }
+    }
+
     @Override
     public DescriptorImpl getDescriptor() {
         return (DescriptorImpl) super.getDescriptor();
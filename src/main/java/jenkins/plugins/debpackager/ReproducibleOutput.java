@@ -0,0 +1,87 @@
+package jenkins.plugins.debpackager;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Settings for byte-identical packages from identical inputs. Only
+ * allow-listed environment variables go into the control file, timestamps
+ * are clamped to <tt>SOURCE_DATE_EPOCH</tt> and permissions and ownership are
+ * normalized in the archive.
+ */
+public class ReproducibleOutput extends AbstractDescribableImpl<ReproducibleOutput> implements
+        Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final String DEFAULT_ENVIRONMENT = "JOB_NAME";
+
+    private final String environment;
+
+    @DataBoundConstructor
+    public ReproducibleOutput(String environment) {
+        this.environment = environment;
+    }
+
+    /**
+     * Comma or space separated names of the environment variables listed in
+     * the package description.
+     */
+    public String getEnvironment() {
+        return environment;
+    }
+
+    /**
+     * The allow-listed part of <tt>env</tt>. <tt>JOB_NAME</tt> is always kept,
+     * it heads the description.
+     */
+    EnvVars filter(EnvVars env) {
+        String names = environment == null || environment.trim().length() == 0
+                ? DEFAULT_ENVIRONMENT : environment;
+        Set<String> allowed = new HashSet<String>(Arrays.asList(names.trim().split("[,\\s]+")));
+        allowed.add("JOB_NAME");
+        EnvVars filtered = new EnvVars();
+        for (String name : allowed) {
+            if (env.containsKey(name)) {
+                filtered.put(name, env.get(name));
+            }
+        }
+        return filtered;
+    }
+
+    /**
+     * <tt>SOURCE_DATE_EPOCH</tt> from the build environment, or 0 when it is
+     * not set or not a number.
+     */
+    long sourceDateEpoch(EnvVars env) {
+        String value = env.get("SOURCE_DATE_EPOCH");
+        if (value != null) {
+            try {
+                return Math.max(0, Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                // fall through to the fixed default
+            }
+        }
+        return 0;
+    }
+
+    public String toString() {
+        return String.format("{environment: %s}", environment);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<ReproducibleOutput> {
+        public String getDisplayName() {
+            return "Reproducible Output";
+        }
+    }
+}
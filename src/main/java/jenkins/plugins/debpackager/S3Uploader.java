@@ -0,0 +1,520 @@
+package jenkins.plugins.debpackager;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.BuildListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.Secret;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Uploads a file to an S3 compatible endpoint with concurrent multipart
+ * uploads, reading each part straight from the file. Requests are signed
+ * with AWS signature version 4 and use path-style addressing, so any
+ * endpoint serving the S3 API (including a local stand-in) can be used.
+ * Credentials not given explicitly are read from <tt>~/.s3cfg</tt> on the
+ * node, like <tt>s3cmd</tt> does.
+ */
+class S3Uploader implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Size of each uploaded part in MiB. */
+    static final int PART_SIZE = Integer.getInteger(S3Uploader.class.getName() + ".partSize",
+            16) * 1024 * 1024;
+
+    /** Number of parts uploaded at the same time. */
+    static final int THREADS = Integer.getInteger(S3Uploader.class.getName() + ".threads", 4);
+
+    /**
+     * Attempts per request before the upload is given up. Only connection
+     * failures, server errors and throttling are retried.
+     */
+    static final int ATTEMPTS = 4;
+
+    private static final int MAX_PARTS = 10000;
+
+    private String endpoint;
+    private String region;
+    private final String bucket;
+    private final String prefix;
+    private String accessKey;
+    /** Given with the job; kept as a {@link Secret} wherever it is sent. */
+    private final Secret secretKey;
+    /** Read from the node's <tt>~/.s3cfg</tt>, never sent anywhere. */
+    private transient String nodeSecretKey;
+
+    /**
+     * @param bucketPath
+     *            <tt>bucket[/prefix]</tt>
+     * @param endpoint
+     *            base URL, or null to use <tt>host_base</tt> from
+     *            <tt>~/.s3cfg</tt> and then AWS
+     */
+    S3Uploader(String bucketPath, String endpoint, String region, String accessKey,
+            Secret secretKey) {
+        String path = bucketPath.replaceAll("^s3://", "").replaceAll("/+$", "");
+        int slash = path.indexOf('/');
+        this.bucket = slash < 0 ? path : path.substring(0, slash);
+        this.prefix = slash < 0 ? "" : path.substring(slash + 1) + "/";
+        this.endpoint = blankToNull(endpoint);
+        this.region = blankToNull(region);
+        this.accessKey = blankToNull(accessKey);
+        this.secretKey = secretKey == null || blankToNull(secretKey.getPlainText()) == null
+                ? null : secretKey;
+    }
+
+    /**
+     * Uploads <tt>source</tt> from the workspace as <tt>name</tt>, then
+     * requests <tt>notifyUrl</tt> if given, all on the node holding the
+     * workspace.
+     */
+    @SuppressWarnings("serial")
+    static void publish(FilePath workspace, final S3Uploader uploader, final String source,
+            final String name, final String notifyUrl, final BuildListener listener)
+            throws IOException, InterruptedException {
+        workspace.act(new FileCallable<Void>() {
+            public Void invoke(File f, VirtualChannel channel) throws IOException,
+                    InterruptedException {
+                PrintStream log = listener.getLogger();
+                uploader.configure();
+                uploader.upload(new File(f, source), name, log);
+                if (notifyUrl != null) {
+                    S3Uploader.notify(notifyUrl, log);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Fills in what was not configured explicitly from <tt>~/.s3cfg</tt>.
+     */
+    void configure() throws IOException {
+        Properties s3cfg = new Properties();
+        File file = new File(System.getProperty("user.home"), ".s3cfg");
+        if (file.isFile()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                s3cfg.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        if (accessKey == null) {
+            accessKey = blankToNull(s3cfg.getProperty("access_key"));
+        }
+        if (secretKey == null) {
+            nodeSecretKey = blankToNull(s3cfg.getProperty("secret_key"));
+        }
+        if (accessKey == null || secretKey() == null) {
+            throw new IOException("No S3 credentials configured and none found in " + file);
+        }
+        if (endpoint == null) {
+            String host = blankToNull(s3cfg.getProperty("host_base"));
+            boolean https = !"false".equalsIgnoreCase(s3cfg.getProperty("use_https", "true")
+                    .trim());
+            endpoint = host == null ? "https://s3.amazonaws.com" : (https ? "https://"
+                    : "http://") + host;
+        }
+        endpoint = endpoint.replaceAll("/+$", "");
+        if (region == null) {
+            String location = blankToNull(s3cfg.getProperty("bucket_location"));
+            region = location == null || location.equals("US") ? "us-east-1" : location;
+        }
+    }
+
+    /**
+     * Uploads <tt>file</tt> as <tt>name</tt> under the bucket prefix.
+     */
+    void upload(File file, String name, PrintStream log) throws IOException,
+            InterruptedException {
+        String key = prefix + name;
+        long size = file.length();
+        long start = System.currentTimeMillis();
+        long partSize = Math.max(PART_SIZE, (size + MAX_PARTS - 1) / MAX_PARTS);
+        int parts = (int) Math.max(1, (size + partSize - 1) / partSize);
+
+        if (parts == 1) {
+            byte[] body = readPart(file, 0, (int) size);
+            execute("PUT", key, "", body, body.length);
+        } else {
+            uploadMultipart(file, key, size, partSize, parts);
+        }
+
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        log.println(String.format("Uploaded %d bytes in %d part(s) to s3://%s/%s in %.1fs"
+                + " (%.1f MB/s)", size, parts, bucket, key, millis / 1000.0,
+                size / 1024.0 / 1024.0 / (millis / 1000.0)));
+    }
+
+    private void uploadMultipart(final File file, final String key, final long size,
+            final long partSize, int parts) throws IOException, InterruptedException {
+        String created = execute("POST", key, "uploads", new byte[0], 0).body;
+        Matcher m = Pattern.compile("<UploadId>([^<]+)</UploadId>").matcher(created);
+        if (!m.find()) {
+            throw new IOException("No UploadId in response: " + created);
+        }
+        final String uploadId = m.group(1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(THREADS, parts),
+                new DaemonThreadFactory());
+        boolean completed = false;
+        try {
+            List<Future<String>> etags = new ArrayList<Future<String>>(parts);
+            for (int i = 0; i < parts; i++) {
+                final int number = i + 1;
+                final long offset = i * partSize;
+                final int length = (int) Math.min(partSize, size - offset);
+                etags.add(pool.submit(new Callable<String>() {
+                    public String call() throws IOException, InterruptedException {
+                        byte[] body = readPart(file, offset, length);
+                        return execute("PUT", key, "partNumber=" + number + "&uploadId="
+                                + encode(uploadId), body, length).etag;
+                    }
+                }));
+            }
+
+            StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+            for (int i = 0; i < parts; i++) {
+                try {
+                    xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                            .append(etags.get(i).get()).append("</ETag></Part>");
+                } catch (ExecutionException e) {
+                    throw new IOException("Failed to upload part " + (i + 1) + " of " + key,
+                            e.getCause());
+                }
+            }
+            xml.append("</CompleteMultipartUpload>");
+            byte[] body = xml.toString().getBytes("UTF-8");
+            try {
+                execute("POST", key, "uploadId=" + encode(uploadId), body, body.length);
+            } catch (StatusException e) {
+                // a retry after the connection dropped on a completion that went
+                // through finds the upload gone; the object tells whether it did
+                if (e.status != 404 || size(key) != size) {
+                    throw e;
+                }
+            }
+            completed = true;
+        } finally {
+            pool.shutdownNow();
+            if (!completed) {
+                try {
+                    execute("DELETE", key, "uploadId=" + encode(uploadId), new byte[0], 0);
+                } catch (IOException e) {
+                    // the bucket's lifecycle rules will have to clean up
+                }
+            }
+        }
+    }
+
+    /**
+     * Size of the object <tt>key</tt>, or -1 if there is none.
+     */
+    private long size(String key) throws IOException, InterruptedException {
+        try {
+            return execute("HEAD", key, "", new byte[0], 0).length;
+        } catch (StatusException e) {
+            if (e.status == 404) {
+                return -1;
+            }
+            throw e;
+        }
+    }
+
+    private static byte[] readPart(File file, long offset, int length) throws IOException {
+        byte[] buf = new byte[length];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            while (bb.hasRemaining()) {
+                if (channel.read(bb, offset + bb.position()) < 0) {
+                    throw new IOException(file + " is shorter than expected");
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return buf;
+    }
+
+    private static final class Response {
+        final String body;
+        final String etag;
+        final long length;
+
+        Response(String body, String etag, long length) {
+            this.body = body;
+            this.etag = etag;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A request the endpoint answered with an error status.
+     */
+    static final class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        StatusException(String message, int status) {
+            super(message);
+            this.status = status;
+        }
+
+        /**
+         * Whether sending the same request again may succeed: on server
+         * errors and throttling, but not when the request itself was
+         * rejected.
+         */
+        boolean isRetryable() {
+            return status >= 500 || status == 429;
+        }
+    }
+
+    /**
+     * Sends one signed request, retrying transient failures with a growing
+     * delay.
+     */
+    private Response execute(String method, String key, String query, byte[] body, int length)
+            throws IOException, InterruptedException {
+        IOException last = null;
+        for (int attempt = 1; attempt <= ATTEMPTS; attempt++) {
+            if (attempt > 1) {
+                Thread.sleep(1000L * (1 << (attempt - 2)));
+            }
+            try {
+                return send(method, key, query, body, length);
+            } catch (StatusException e) {
+                if (!e.isRetryable()) {
+                    throw e;
+                }
+                last = e;
+            } catch (IOException e) {
+                last = e;
+            }
+        }
+        throw last;
+    }
+
+    private Response send(String method, String key, String query, byte[] body, int length)
+            throws IOException {
+        String path = "/" + bucket + "/" + encodePath(key);
+        URL url = new URL(endpoint + path + (query.length() > 0 ? "?" + query : ""));
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setRequestMethod(method);
+        con.setConnectTimeout(30000);
+        con.setReadTimeout(300000);
+
+        TreeMap<String, String> headers = new TreeMap<String, String>();
+        int port = url.getPort();
+        headers.put("host", url.getHost()
+                + (port < 0 || port == url.getDefaultPort() ? "" : ":" + port));
+        headers.put("x-amz-content-sha256", sha256(body, length));
+        headers.put("x-amz-date", timestamp("yyyyMMdd'T'HHmmss'Z'"));
+        for (String name : headers.keySet()) {
+            if (!name.equals("host")) {
+                con.setRequestProperty(name, headers.get(name));
+            }
+        }
+        con.setRequestProperty("Authorization", authorization(method, path, query, headers));
+
+        if (!method.equals("GET") && !method.equals("HEAD") && !method.equals("DELETE")) {
+            con.setDoOutput(true);
+            con.setFixedLengthStreamingMode(length);
+            OutputStream out = con.getOutputStream();
+            try {
+                out.write(body, 0, length);
+            } finally {
+                out.close();
+            }
+        }
+
+        int status = con.getResponseCode();
+        InputStream in = status >= 400 ? con.getErrorStream() : con.getInputStream();
+        String response = in == null ? "" : IOUtils.toString(in, "UTF-8");
+        if (in != null) {
+            in.close();
+        }
+        if (status >= 300) {
+            throw new StatusException(method + " " + url + " failed with " + status + ": "
+                    + response.trim(), status);
+        }
+        // CompleteMultipartUpload may report an error with a 200 status, to be retried
+        if (response.contains("<Error>")) {
+            throw new IOException(method + " " + url + " failed: " + response.trim());
+        }
+        String contentLength = con.getHeaderField("Content-Length");
+        return new Response(response, con.getHeaderField("ETag"), contentLength == null ? -1
+                : Long.parseLong(contentLength.trim()));
+    }
+
+    /**
+     * The signature version 4 <tt>Authorization</tt> header of a request to
+     * the URI-encoded <tt>path</tt>, signing all of <tt>headers</tt>. Their
+     * names must be lower case, and they must include <tt>host</tt>,
+     * <tt>x-amz-date</tt> and <tt>x-amz-content-sha256</tt>.
+     */
+    String authorization(String method, String path, String query,
+            TreeMap<String, String> headers) throws IOException {
+        StringBuilder canonical = new StringBuilder();
+        canonical.append(method).append('\n').append(path).append('\n');
+        canonical.append(canonicalQuery(query)).append('\n');
+        for (String name : headers.keySet()) {
+            canonical.append(name).append(':').append(headers.get(name)).append('\n');
+        }
+        String signedHeaders = join(headers.keySet());
+        canonical.append('\n').append(signedHeaders).append('\n');
+        canonical.append(headers.get("x-amz-content-sha256"));
+
+        String date = headers.get("x-amz-date").substring(0, 8);
+        String scope = date + "/" + region + "/s3/aws4_request";
+        byte[] request = canonical.toString().getBytes("UTF-8");
+        String toSign = "AWS4-HMAC-SHA256\n" + headers.get("x-amz-date") + "\n" + scope + "\n"
+                + sha256(request, request.length);
+
+        byte[] signingKey = hmac(("AWS4" + secretKey()).getBytes("UTF-8"), date);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, "s3");
+        signingKey = hmac(signingKey, "aws4_request");
+        String signature = hex(hmac(signingKey, toSign));
+
+        return "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope + ", SignedHeaders="
+                + signedHeaders + ", Signature=" + signature;
+    }
+
+    private String secretKey() {
+        return secretKey != null ? secretKey.getPlainText() : nodeSecretKey;
+    }
+
+    /**
+     * Requests the repository server's add-package URL.
+     */
+    static void notify(String notifyUrl, PrintStream log) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL(notifyUrl).openConnection();
+        con.setConnectTimeout(30000);
+        con.setReadTimeout(300000);
+        int status = con.getResponseCode();
+        InputStream in = status >= 400 ? con.getErrorStream() : con.getInputStream();
+        String response = in == null ? "" : IOUtils.toString(in, "UTF-8");
+        if (in != null) {
+            in.close();
+        }
+        if (status >= 300) {
+            throw new IOException("GET " + notifyUrl + " failed with " + status + ": "
+                    + response.trim());
+        }
+        log.println("GET " + notifyUrl + ": " + response.trim());
+    }
+
+    private static String canonicalQuery(String query) throws IOException {
+        if (query.length() == 0) {
+            return "";
+        }
+        TreeMap<String, String> params = new TreeMap<String, String>();
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            params.put(eq < 0 ? param : param.substring(0, eq), eq < 0 ? "" : param
+                    .substring(eq + 1));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String name : params.keySet()) {
+            if (sb.length() > 0) {
+                sb.append('&');
+            }
+            sb.append(name).append('=').append(params.get(name));
+        }
+        return sb.toString();
+    }
+
+    private static String join(Iterable<String> names) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(name);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * URI-encodes a value the way signature version 4 expects.
+     */
+    static String encode(String value) throws IOException {
+        return URLEncoder.encode(value, "UTF-8").replace("+", "%20").replace("*", "%2A")
+                .replace("%7E", "~");
+    }
+
+    static String encodePath(String key) throws IOException {
+        return encode(key).replace("%2F", "/");
+    }
+
+    private static String sha256(byte[] data, int length) {
+        MessageDigest md = Digests.digest("SHA-256");
+        md.update(data, 0, length);
+        return Digests.hex(md);
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes("UTF-8"));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to sign request", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        return new String(Hex.encodeHex(bytes));
+    }
+
+    private static String timestamp(String format) {
+        SimpleDateFormat f = new SimpleDateFormat(format);
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return f.format(new Date());
+    }
+
+    private static String blankToNull(String s) {
+        return s == null || s.trim().length() == 0 ? null : s.trim();
+    }
+}
@@ -0,0 +1,112 @@
+package jenkins.plugins.debpackager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Record of what was staged into <tt>.packaged</tt> by the last incremental
+ * build: one line per file with its package path, size, modification time and,
+ * optionally, an MD5 of its contents.
+ */
+class StagingManifest {
+
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    static StagingManifest load(File file) throws IOException {
+        StagingManifest manifest = new StagingManifest();
+        if (!file.isFile()) {
+            return manifest;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length < 3) {
+                    continue;
+                }
+                manifest.entries.put(fields[0], new Entry(Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2]), fields.length > 3 ? fields[3] : null));
+            }
+        } finally {
+            in.close();
+        }
+        return manifest;
+    }
+
+    void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp),
+                "UTF-8"));
+        try {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.print(e.getKey() + "\t" + entry.size + "\t" + entry.mtime);
+                if (entry.md5 != null) {
+                    out.print("\t" + entry.md5);
+                }
+                out.print("\n");
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to write " + file);
+            }
+        }
+    }
+
+    Entry get(String path) {
+        return entries.get(path);
+    }
+
+    void put(String path, Entry entry) {
+        entries.put(path, entry);
+    }
+
+    Iterable<String> paths() {
+        return entries.keySet();
+    }
+
+    boolean contains(String path) {
+        return entries.containsKey(path);
+    }
+
+    static final class Entry {
+        final long size;
+        final long mtime;
+        final String md5;
+
+        Entry(long size, long mtime, String md5) {
+            this.size = size;
+            this.mtime = mtime;
+            this.md5 = md5;
+        }
+
+        boolean sameStat(File file) {
+            return size == file.length() && mtime == file.lastModified();
+        }
+    }
+
+    static String md5(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return DigestUtils.md5Hex(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package jenkins.plugins.debpackager;
+
+/**
+ * How a {@link CopyPath} places files into the staging directory.
+ */
+public enum StagingMode {
+    COPY("Copy"),
+    HARDLINK("Hardlink"),
+    REFLINK("Reflink (btrfs/XFS)");
+
+    private final String displayName;
+
+    private StagingMode(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public static StagingMode fromString(String value) {
+        if (value == null || value.length() == 0) {
+            return COPY;
+        }
+        try {
+            return valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return COPY;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package jenkins.plugins.debpackager;
+
+import hudson.Util;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Deletes directory trees in the background on the node that holds them. The
+ * tree is first renamed aside, so the original path is free immediately, then
+ * removed level by level with the directories of each level listed and
+ * emptied in parallel.
+ */
+class TreeDeleter {
+
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(Math.max(2,
+            Runtime.getRuntime().availableProcessors()), new DaemonThreadFactory());
+    private static final ExecutorService CLEANUPS = Executors
+            .newCachedThreadPool(new DaemonThreadFactory());
+    private static final Map<String, Future<List<String>>> PENDING = new ConcurrentHashMap<String, Future<List<String>>>();
+
+    /**
+     * Renames <tt>dir</tt> aside and schedules its deletion, together with
+     * any trees an earlier run left behind.
+     *
+     * @return handle for {@link #await(String)}
+     */
+    static String deleteInBackground(File dir) throws IOException {
+        final List<File> trash = new ArrayList<File>();
+        final String prefix = dir.getName() + ".trash-";
+        File[] leftovers = dir.getParentFile().listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                if (leftover.getName().startsWith(prefix)) {
+                    trash.add(leftover);
+                }
+            }
+        }
+
+        if (dir.exists()) {
+            File aside = new File(dir.getParentFile(), prefix + System.nanoTime());
+            if (!dir.renameTo(aside)) {
+                throw new IOException("Failed to move " + dir + " aside");
+            }
+            trash.add(aside);
+        }
+
+        String id = dir.getAbsolutePath() + "@" + System.nanoTime();
+        PENDING.put(id, CLEANUPS.submit(new Callable<List<String>>() {
+            public List<String> call() throws Exception {
+                List<String> failures = new ArrayList<String>();
+                for (File tree : trash) {
+                    delete(tree, failures);
+                }
+                return failures;
+            }
+        }));
+        return id;
+    }
+
+    /**
+     * Waits for a deletion started by {@link #deleteInBackground(File)}.
+     *
+     * @return the paths that could not be deleted
+     */
+    static List<String> await(String id) throws InterruptedException {
+        Future<List<String>> future = PENDING.remove(id);
+        if (future == null) {
+            return Collections.emptyList();
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            return Collections.singletonList(id + ": " + e.getCause());
+        }
+    }
+
+    private static void delete(File root, List<String> failures) throws InterruptedException {
+        List<File> dirs = new ArrayList<File>();
+        List<File> level = Collections.singletonList(root);
+        while (!level.isEmpty()) {
+            dirs.addAll(level);
+            List<Future<List<File>>> listings = new ArrayList<Future<List<File>>>();
+            for (final File dir : level) {
+                listings.add(WORKERS.submit(new Callable<List<File>>() {
+                    public List<File> call() throws IOException {
+                        return emptyFiles(dir);
+                    }
+                }));
+            }
+            List<File> next = new ArrayList<File>();
+            for (Future<List<File>> listing : listings) {
+                try {
+                    next.addAll(listing.get());
+                } catch (ExecutionException e) {
+                    failures.add(String.valueOf(e.getCause()));
+                }
+            }
+            level = next;
+        }
+
+        // directories are empty now (or hold something we could not delete),
+        // remove them deepest first
+        for (int i = dirs.size() - 1; i >= 0; i--) {
+            File dir = dirs.get(i);
+            if (!dir.delete() && dir.exists()) {
+                failures.add(dir.getPath());
+            }
+        }
+
+        if (root.exists()) {
+            // most likely a tree chowned to root by an older version
+            try {
+                FilePathUtils.sudoDeleteRecursive(root);
+                failures.clear();
+            } catch (IOException e) {
+                failures.add(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Deletes the files in <tt>dir</tt> and returns its subdirectories.
+     */
+    private static List<File> emptyFiles(File dir) throws IOException {
+        List<File> subdirs = new ArrayList<File>();
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return subdirs;
+        }
+        for (File child : children) {
+            if (child.isDirectory() && !Util.isSymlink(child)) {
+                subdirs.add(child);
+            } else {
+                child.delete();
+            }
+        }
+        return subdirs;
+    }
+}
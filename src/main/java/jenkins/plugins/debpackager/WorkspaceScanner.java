@@ -0,0 +1,234 @@
+package jenkins.plugins.debpackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * Matches all copy rules of a job in a single walk of the workspace, instead
+ * of one Ant scan per rule. Include and exclude patterns follow the Ant
+ * fileset semantics of the per-rule scan, including the default excludes.
+ * Directories are only entered when some rule can still match below them.
+ */
+class WorkspaceScanner {
+
+    /**
+     * Excluded for every rule, so the package never picks up its own output,
+     * including the <tt>.packaged.trash-*</tt> trees still being deleted.
+     */
+    private static final String STAGING_EXCLUDES = ".packaged/, .packaged.*, .packaged.*/";
+
+    private static final class Rule {
+        /** Working dir relative to the walk root, empty or ending in a separator. */
+        final String prefix;
+        final String[] includes;
+        final String[] excludes;
+        final List<String> matches = new ArrayList<String>();
+
+        Rule(String prefix, CopyPath path) {
+            this.prefix = prefix;
+            this.includes = patterns(path.getInclude(), "**");
+            List<String> excludes = new ArrayList<String>();
+            excludes.addAll(Arrays.asList(patterns(path.getExclude(), null)));
+            excludes.addAll(Arrays.asList(patterns(STAGING_EXCLUDES, null)));
+            excludes.addAll(Arrays.asList(patterns(DirectoryScanner.getDefaultExcludes())));
+            this.excludes = excludes.toArray(new String[excludes.size()]);
+        }
+
+        /**
+         * @return path relative to the working dir, or null if <tt>path</tt>
+         *         is not below it
+         */
+        String relative(String path) {
+            return path.startsWith(prefix) ? path.substring(prefix.length()) : null;
+        }
+
+        boolean matches(String path) {
+            return matchesAny(includes, path) && !matchesAny(excludes, path);
+        }
+
+        /**
+         * Whether anything below the directory <tt>path</tt> can match.
+         */
+        boolean couldMatchBelow(String path) {
+            for (String exclude : excludes) {
+                if (exclude.endsWith(File.separator + "**") || exclude.equals("**")) {
+                    if (SelectorUtils.matchPath(exclude, path)) {
+                        return false;
+                    }
+                }
+            }
+            for (String include : includes) {
+                if (SelectorUtils.matchPatternStart(include, path)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final Map<File, List<Rule>> roots = new LinkedHashMap<File, List<Rule>>();
+    private final List<Rule> rules = new ArrayList<Rule>();
+
+    private WorkspaceScanner(File workspace, List<CopyPath> paths) {
+        String wsPath = workspace.getAbsolutePath();
+        for (CopyPath path : paths) {
+            File base = path.workingPath(workspace);
+            String workingDir = relativize(wsPath, base.getAbsolutePath());
+            File root = workspace;
+            if (workingDir == null) {
+                // outside the workspace, walk it on its own
+                root = base;
+                workingDir = "";
+            }
+            List<Rule> forRoot = roots.get(root);
+            if (forRoot == null) {
+                forRoot = new ArrayList<Rule>();
+                roots.put(root, forRoot);
+            }
+            Rule rule = new Rule(workingDir, path);
+            forRoot.add(rule);
+            rules.add(rule);
+        }
+    }
+
+    /**
+     * Lists the files matched by each of <tt>paths</tt>, relative to the
+     * rule's working dir, in the order of <tt>paths</tt>. Runs on the node
+     * holding the workspace.
+     */
+    static List<List<String>> scan(File workspace, List<CopyPath> paths) throws IOException,
+            InterruptedException {
+        WorkspaceScanner scanner = new WorkspaceScanner(workspace, paths);
+        for (Map.Entry<File, List<Rule>> e : scanner.roots.entrySet()) {
+            if (e.getKey().isDirectory()) {
+                walk(e.getKey(), "", e.getValue(), new HashSet<String>());
+            }
+        }
+        List<List<String>> result = new ArrayList<List<String>>(scanner.rules.size());
+        for (Rule rule : scanner.rules) {
+            result.add(rule.matches);
+        }
+        return result;
+    }
+
+    private static void walk(File dir, String path, List<Rule> rules, Set<String> ancestors)
+            throws IOException, InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        // symlinked directories are followed like Ant does, but not in circles
+        String canonical = dir.getCanonicalPath();
+        if (!ancestors.add(canonical)) {
+            return;
+        }
+        String[] children = dir.list();
+        if (children == null) {
+            ancestors.remove(canonical);
+            return;
+        }
+        Arrays.sort(children);
+        for (String name : children) {
+            File child = new File(dir, name);
+            String childPath = path + name;
+            if (child.isDirectory()) {
+                List<Rule> active = new ArrayList<Rule>(rules.size());
+                for (Rule rule : rules) {
+                    String relative = rule.relative(childPath);
+                    if (relative == null ? rule.prefix.startsWith(childPath + File.separator)
+                            : rule.couldMatchBelow(relative)) {
+                        active.add(rule);
+                    }
+                }
+                if (!active.isEmpty()) {
+                    walk(child, childPath + File.separator, active, ancestors);
+                }
+            } else {
+                for (Rule rule : rules) {
+                    String relative = rule.relative(childPath);
+                    if (relative != null && rule.matches(relative)) {
+                        rule.matches.add(relative);
+                    }
+                }
+            }
+        }
+        ancestors.remove(canonical);
+    }
+
+    private static boolean matchesAny(String[] patterns, String path) {
+        for (String pattern : patterns) {
+            if (SelectorUtils.matchPath(pattern, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits a comma separated Ant pattern list the way
+     * {@link hudson.Util#createFileSet(File, String, String)} does.
+     */
+    private static String[] patterns(String list, String none) {
+        List<String> patterns = new ArrayList<String>();
+        if (list != null) {
+            StringTokenizer tokens = new StringTokenizer(list, ",");
+            while (tokens.hasMoreTokens()) {
+                String token = tokens.nextToken().trim();
+                if (token.length() > 0) {
+                    patterns.add(token);
+                }
+            }
+        }
+        if (patterns.isEmpty() && none != null) {
+            patterns.add(none);
+        }
+        return patterns(patterns.toArray(new String[patterns.size()]));
+    }
+
+    /**
+     * Normalizes patterns like {@link DirectoryScanner} does: native
+     * separators, and a trailing separator meaning everything below.
+     */
+    private static String[] patterns(String[] patterns) {
+        String[] normalized = new String[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            String pattern = patterns[i].replace('/', File.separatorChar).replace('\\',
+                    File.separatorChar);
+            if (pattern.endsWith(File.separator)) {
+                pattern += "**";
+            }
+            normalized[i] = pattern;
+        }
+        return normalized;
+    }
+
+    /**
+     * @return <tt>path</tt> relative to <tt>base</tt> with a trailing
+     *         separator, empty if they are the same, or null if <tt>path</tt>
+     *         is not below <tt>base</tt>
+     */
+    private static String relativize(String base, String path) {
+        base = new File(base).toURI().normalize().getPath();
+        path = new File(path).toURI().normalize().getPath();
+        if (!base.endsWith("/")) {
+            base += "/";
+        }
+        if (!path.endsWith("/")) {
+            path += "/";
+        }
+        if (!path.startsWith(base)) {
+            return null;
+        }
+        return path.substring(base.length()).replace('/', File.separatorChar);
+    }
+}
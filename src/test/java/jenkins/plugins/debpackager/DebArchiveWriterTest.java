@@ -0,0 +1,229 @@
+package jenkins.plugins.debpackager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DebArchiveWriterTest {
+
+    private static final String CONTROL = "Package: hello\n"
+            + "Version: 1.0\n"
+            + "Architecture: all\n"
+            + "Maintainer: Jane Doe <jane@example.com>\n"
+            + "Description: prints a greeting\n";
+
+    private static final String LONG_PATH = "opt/hello/" + repeat("deeply-nested/", 8)
+            + "with-a-name-longer-than-the-ustar-name-field.txt";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void writesMembersInDpkgOrder() throws Exception {
+        Map<String, byte[]> members = members(write(tmp.newFile("hello.deb"), -1));
+        assertEquals(Arrays.asList("debian-binary", "control.tar.gz", "data.tar.gz"),
+                new ArrayList<String>(members.keySet()));
+        assertEquals("2.0\n", new String(members.get("debian-binary"), "US-ASCII"));
+    }
+
+    @Test
+    public void controlCarriesInstalledSizeAndMd5sums() throws Exception {
+        File deb = write(tmp.newFile("hello.deb"), -1);
+        Map<String, String> control = DebControl.readControl(deb);
+        assertEquals("hello", control.get("Package"));
+        assertEquals("2", control.get("Installed-Size"));
+        Map<String, TarEntry> entries = new LinkedHashMap<String, TarEntry>();
+        Map<String, String> contents = untar(members(deb).get("control.tar.gz"), entries);
+        assertEquals(Arrays.asList("./", "./control", "./md5sums"), new ArrayList<String>(
+                entries.keySet()));
+        assertTrue(contents.get("./md5sums"), contents.get("./md5sums").contains(
+                "  opt/hello/greeting\n"));
+    }
+
+    @Test
+    public void keepsLongNamesSymlinksAndOwners() throws Exception {
+        Map<String, TarEntry> entries = new LinkedHashMap<String, TarEntry>();
+        Map<String, String> contents = untar(members(write(tmp.newFile("hello.deb"), -1)).get(
+                "data.tar.gz"), entries);
+
+        assertEquals("hello\n", contents.get("./opt/hello/greeting"));
+        assertEquals(LONG_PATH, contents.get("./" + LONG_PATH));
+
+        TarEntry link = entries.get("./opt/hello/current");
+        assertTrue(link.isSymbolicLink());
+        assertEquals("greeting", link.getLinkName());
+
+        TarEntry root = entries.get("./");
+        assertEquals("root", root.getUserName());
+        assertEquals("root", root.getGroupName());
+        TarEntry data = entries.get("./var/lib/hello/");
+        assertEquals("www-data", data.getUserName());
+        assertEquals("adm", data.getGroupName());
+        TarEntry state = entries.get("./var/lib/hello/state");
+        assertEquals(1000, state.getUserId());
+        assertEquals(1001, state.getGroupId());
+    }
+
+    @Test
+    public void sameEpochGivesSameBytes() throws Exception {
+        File first = write(tmp.newFile("first.deb"), 1300000000);
+        File second = write(tmp.newFile("second.deb"), 1300000000);
+        assertArrayEquals(FileUtils.readFileToByteArray(first), FileUtils
+                .readFileToByteArray(second));
+    }
+
+    @Test
+    public void rejectsFilesTooLargeForUstar() throws Exception {
+        File huge = tmp.newFile("huge");
+        RandomAccessFile raf = new RandomAccessFile(huge, "rw");
+        try {
+            // sparse, so it takes no space
+            raf.setLength(DebArchiveWriter.MAX_ENTRY_SIZE + 1);
+        } finally {
+            raf.close();
+        }
+        DebArchiveWriter writer = new DebArchiveWriter(tmp.newFile("huge.deb"), null);
+        try {
+            writer.addFile("opt/huge", huge);
+            fail("wrote an entry of " + huge.length() + " bytes");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("dpkg-deb"));
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void dpkgDebReadsIt() throws Exception {
+        assumeTrue(run("dpkg-deb", "--version") != null);
+        File deb = write(tmp.newFile("hello.deb"), -1);
+        String info = run("dpkg-deb", "--info", deb.getPath());
+        assertTrue(info, info != null && info.contains("Package: hello"));
+        String listing = run("dpkg-deb", "--contents", deb.getPath());
+        assertTrue(listing, listing != null && listing.contains("./" + LONG_PATH));
+        assertTrue(listing, listing.contains("./opt/hello/current -> greeting"));
+        assertTrue(listing, listing.contains("www-data/adm"));
+    }
+
+    private File write(File deb, long sourceDateEpoch) throws Exception {
+        File source = new File(tmp.getRoot(), "source");
+        File greeting = new File(source, "greeting");
+        File longFile = new File(source, "long.txt");
+        File state = new File(source, "state");
+        if (!source.isDirectory()) {
+            FileUtils.writeStringToFile(greeting, "hello\n", "UTF-8");
+            FileUtils.writeStringToFile(longFile, LONG_PATH, "UTF-8");
+            FileUtils.writeStringToFile(state, "", "UTF-8");
+            assertEquals(0, new ProcessBuilder("ln", "-s", "greeting", "current").directory(
+                    source).start().waitFor());
+        }
+
+        DebArchiveWriter writer = new DebArchiveWriter(deb, null, sourceDateEpoch);
+        try {
+            writer.collectMd5sums();
+            writer.addControlFile("control", CONTROL, 0644);
+            writer.setOwner("var/lib/hello", "www-data:adm");
+            writer.setOwner("var/lib/hello/state", "1000:1001");
+            writer.addFile("opt/hello/greeting", greeting);
+            writer.addFile("opt/hello/current", new File(source, "current"));
+            writer.addFile(LONG_PATH, longFile);
+            writer.addFile("var/lib/hello/state", state);
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        return deb;
+    }
+
+    /**
+     * The members of the ar archive <tt>deb</tt>, in order.
+     */
+    private static Map<String, byte[]> members(File deb) throws IOException {
+        Map<String, byte[]> members = new LinkedHashMap<String, byte[]>();
+        DataInputStream in = new DataInputStream(new FileInputStream(deb));
+        try {
+            byte[] magic = new byte[8];
+            in.readFully(magic);
+            assertEquals("!<arch>\n", new String(magic, "US-ASCII"));
+            byte[] header = new byte[60];
+            while (in.read(header, 0, 1) == 1) {
+                in.readFully(header, 1, 59);
+                String h = new String(header, "US-ASCII");
+                assertEquals("`\n", h.substring(58));
+                byte[] data = new byte[Integer.parseInt(h.substring(48, 58).trim())];
+                in.readFully(data);
+                if (data.length % 2 != 0) {
+                    in.readByte();
+                }
+                members.put(h.substring(0, 16).trim(), data);
+            }
+        } finally {
+            in.close();
+        }
+        return members;
+    }
+
+    /**
+     * The regular files of a tar.gz member by name, collecting every entry
+     * into <tt>entries</tt>.
+     */
+    private static Map<String, String> untar(byte[] member, Map<String, TarEntry> entries)
+            throws IOException {
+        Map<String, String> contents = new LinkedHashMap<String, String>();
+        TarInputStream tar = new TarInputStream(new GZIPInputStream(new ByteArrayInputStream(
+                member)));
+        try {
+            TarEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                entries.put(entry.getName(), entry);
+                if (!entry.isDirectory() && !entry.isSymbolicLink()) {
+                    contents.put(entry.getName(), IOUtils.toString(tar, "UTF-8"));
+                }
+            }
+        } finally {
+            tar.close();
+        }
+        return contents;
+    }
+
+    private static String run(String... command) {
+        try {
+            Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+            p.getOutputStream().close();
+            String output = IOUtils.toString(p.getInputStream());
+            return p.waitFor() == 0 ? output : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
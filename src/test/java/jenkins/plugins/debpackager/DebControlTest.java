@@ -0,0 +1,150 @@
+package jenkins.plugins.debpackager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DebControlTest {
+
+    private static final String CONTROL = "Package: hello\n"
+            + "Version: 1:2.10-3~bpo1\n"
+            + "Architecture: all\n"
+            + "Maintainer: Jane Doe <jane@example.com>\n"
+            + "Depends: libc6 (>= 2.14), perl | perl-base\n"
+            + "Description: prints a greeting\n"
+            + " The first paragraph of the long description.\n"
+            + " .\n"
+            + "   a preformatted line\n"
+            + " The last line.\n";
+
+    private static final String PACKAGES = CONTROL
+            + "Filename: pool/main/h/hello/hello_2.10-3~bpo1_all.deb\n"
+            + "Size: 1234\n"
+            + "\n"
+            + "Package: hello-conf\n"
+            + "Version: 0.1\n"
+            + "Architecture: amd64\n"
+            + "Conffiles:\n"
+            + " /etc/hello.conf 0123456789abcdef0123456789abcdef\n"
+            + " /etc/hello.d/extra.conf fedcba9876543210fedcba9876543210\n"
+            + "Description: configuration for hello\n"
+            + "\n";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void parseKeepsFieldsOrderAndContinuationLines() throws IOException {
+        List<Map<String, String>> stanzas = DebControl.parse(new StringReader(PACKAGES));
+        assertEquals(2, stanzas.size());
+        Map<String, String> hello = stanzas.get(0);
+        assertEquals(Arrays.asList("Package", "Version", "Architecture", "Maintainer",
+                "Depends", "Description", "Filename", "Size"), new ArrayList<String>(hello
+                .keySet()));
+        assertEquals("1:2.10-3~bpo1", hello.get("Version"));
+        assertEquals("prints a greeting\n The first paragraph of the long description.\n .\n"
+                + "   a preformatted line\n The last line.", hello.get("Description"));
+        assertEquals("\n /etc/hello.conf 0123456789abcdef0123456789abcdef\n"
+                + " /etc/hello.d/extra.conf fedcba9876543210fedcba9876543210", stanzas.get(1)
+                .get("Conffiles"));
+    }
+
+    @Test
+    public void formatRoundTrips() throws IOException {
+        List<Map<String, String>> stanzas = DebControl.parse(new StringReader(PACKAGES));
+        assertEquals(PACKAGES, new String(DebRepository.format(stanzas), "UTF-8"));
+    }
+
+    @Test
+    public void parseSkipsExtraBlankLines() throws IOException {
+        List<Map<String, String>> stanzas = DebControl.parse(new StringReader("\n\n" + PACKAGES
+                + "\n\n"));
+        assertEquals(PACKAGES, new String(DebRepository.format(stanzas), "UTF-8"));
+    }
+
+    @Test
+    public void mergeReplacesTheSameVersionAndKeepsOthers() throws IOException {
+        List<Map<String, String>> existing = DebControl.parse(new StringReader(PACKAGES));
+        Map<String, String> rebuilt = new LinkedHashMap<String, String>(existing.get(0));
+        rebuilt.put("Size", "4321");
+        Map<String, String> newer = new LinkedHashMap<String, String>(existing.get(0));
+        newer.put("Version", "1:2.11-1");
+
+        Collection<Map<String, String>> merged = DebRepository.merge(existing, Arrays.asList(
+                rebuilt, newer));
+        List<Map<String, String>> result = new ArrayList<Map<String, String>>(merged);
+        assertEquals(3, result.size());
+        assertEquals("4321", result.get(0).get("Size"));
+        assertEquals("hello-conf", result.get(1).get("Package"));
+        assertEquals("1:2.11-1", result.get(2).get("Version"));
+    }
+
+    @Test
+    public void readControlFromInProcessWriter() throws Exception {
+        File root = stagingTree();
+        File deb = new File(tmp.getRoot(), "in-process.deb");
+        DebArchiveWriter writer = new DebArchiveWriter(deb, null);
+        try {
+            writer.addTree(root);
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        assertControl(DebControl.readControl(deb));
+    }
+
+    @Test
+    public void readControlFromDpkgDeb() throws Exception {
+        assumeTrue(canRun("dpkg-deb", "--version"));
+        File root = stagingTree();
+        File deb = new File(tmp.getRoot(), "dpkg-deb.deb");
+        Process p = new ProcessBuilder("dpkg-deb", "--root-owner-group", "-Zgzip", "-b",
+                root.getPath(), deb.getPath()).redirectErrorStream(true).start();
+        p.getOutputStream().close();
+        String output = IOUtils.toString(p.getInputStream());
+        assertEquals(output, 0, p.waitFor());
+        assertControl(DebControl.readControl(deb));
+    }
+
+    private File stagingTree() throws IOException {
+        File root = tmp.newFolder("packaged");
+        File debian = new File(root, "DEBIAN");
+        debian.mkdirs();
+        FileUtils.writeStringToFile(new File(debian, "control"), CONTROL, "UTF-8");
+        FileUtils.writeStringToFile(new File(root, "usr/share/hello/greeting"), "hello\n",
+                "UTF-8");
+        return root;
+    }
+
+    private static void assertControl(Map<String, String> control) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        DebControl.format(control, sb);
+        assertEquals(CONTROL, sb.toString());
+    }
+
+    private static boolean canRun(String... command) {
+        try {
+            Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+            p.getOutputStream().close();
+            IOUtils.toString(p.getInputStream());
+            return p.waitFor() == 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package jenkins.plugins.debpackager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DebVersionTest {
+
+    @Test
+    public void tildeSortsBeforeEverything() {
+        assertOrdered("1.0~rc1", "1.0");
+        assertOrdered("1.0~~", "1.0~");
+        assertOrdered("1.0~", "1.0");
+        assertOrdered("1.0~rc1", "1.0~rc2");
+        assertOrdered("1.0-1~bpo1", "1.0-1");
+    }
+
+    @Test
+    public void lettersSortBeforeOtherCharacters() {
+        assertOrdered("1.0", "1.0a");
+        assertOrdered("1.0a", "1.0+");
+        assertOrdered("1.0", "1.0+");
+        assertOrdered("1.0-1", "1.0-1+b1");
+    }
+
+    @Test
+    public void epochComesFirst() {
+        assertOrdered("9.9", "1:0.1");
+        assertOrdered("1:9.9", "2:1.0");
+        assertEquals(0, DebVersion.compare("0:1.0", "1.0"));
+    }
+
+    @Test
+    public void revisionComesLast() {
+        assertOrdered("1.0-1", "1.0-2");
+        assertOrdered("1.0-9", "1.0-10");
+        assertOrdered("1.0", "1.0-1");
+        assertEquals(0, DebVersion.compare("1.0-0", "1.0"));
+        // only the last hyphen starts the revision
+        assertOrdered("1.0-beta-1", "1.0-beta-2");
+        assertOrdered("1.0-beta-2", "1.0.1-1");
+    }
+
+    @Test
+    public void comparesLongDigitRunsNumerically() {
+        assertOrdered("1.20230101123456789012345", "1.20230101123456789012346");
+        assertOrdered("99999999999999999999", "100000000000000000000");
+        assertEquals(0, DebVersion.compare("1.000123", "1.123"));
+    }
+
+    @Test
+    public void sortsLikeDpkg() {
+        List<String> expected = Arrays.asList("1.0~~", "1.0~rc1", "1.0", "1.0-1~bpo1", "1.0-1",
+                "1.0-1+b1", "1.0a", "1.0+", "1.2", "1.10", "0:2.0", "1:0.1");
+        List<String> sorted = Arrays.asList("1.10", "1:0.1", "1.0-1", "1.0~rc1", "1.0+",
+                "1.0-1+b1", "1.2", "1.0a", "1.0~~", "0:2.0", "1.0", "1.0-1~bpo1");
+        Collections.sort(sorted, DebVersion.COMPARATOR);
+        assertEquals(expected, sorted);
+    }
+
+    @Test
+    public void checksRelations() {
+        assertTrue(DebVersion.satisfies("1.0", ">=", "1.0~rc1"));
+        assertTrue(DebVersion.satisfies("1.0~rc1", "<<", "1.0"));
+        assertTrue(DebVersion.satisfies("0:1.0", "=", "1.0"));
+        assertFalse(DebVersion.satisfies("1.0-1", ">>", "1:0.1"));
+        assertTrue(DebVersion.satisfies("1.0", "<", "1.0"));
+    }
+
+    private static void assertOrdered(String lower, String higher) {
+        assertEquals(lower + " < " + higher, -1, DebVersion.compare(lower, higher));
+        assertEquals(higher + " > " + lower, 1, DebVersion.compare(higher, lower));
+    }
+}
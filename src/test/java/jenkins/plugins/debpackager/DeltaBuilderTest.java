@@ -0,0 +1,126 @@
+package jenkins.plugins.debpackager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeltaBuilderTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File root;
+    private File base;
+    private File checksum;
+    private File delta;
+    private ByteArrayOutputStream log;
+
+    @Before
+    public void setUp() throws Exception {
+        root = tmp.newFolder("deltas");
+        base = new File(root, "hello/all/base.deb");
+        checksum = new File(root, "hello/all/base.deb.sha256");
+        delta = new File(tmp.getRoot(), ".packaged.debdelta");
+        log = new ByteArrayOutputStream();
+    }
+
+    @Test
+    public void firstBuildBecomesTheBase() throws Exception {
+        File deb = deb("1.0");
+        assertNull(makeDelta(deb));
+        assertTrue(log(), log().contains("No base for hello all"));
+        assertBase(deb);
+    }
+
+    @Test
+    public void sameVersionNeedsNoDelta() throws Exception {
+        makeDelta(deb("1.0"));
+        assertNull(makeDelta(deb("1.0")));
+        assertTrue(log(), log().contains("Base is already hello 1.0"));
+        assertFalse(delta.exists());
+    }
+
+    @Test
+    public void discardsCorruptBase() throws Exception {
+        makeDelta(deb("1.0"));
+        FileUtils.writeStringToFile(base, "not a package");
+        File deb = deb("2.0");
+        assertNull(makeDelta(deb));
+        assertTrue(log(), log().contains("Discarding corrupt base"));
+        assertFalse(delta.exists());
+        assertBase(deb);
+    }
+
+    @Test
+    public void discardsBaseWithoutChecksum() throws Exception {
+        makeDelta(deb("1.0"));
+        checksum.delete();
+        File deb = deb("2.0");
+        assertNull(makeDelta(deb));
+        assertTrue(log(), log().contains("Discarding corrupt base"));
+        assertBase(deb);
+    }
+
+    @Test
+    public void replacesMissingBase() throws Exception {
+        makeDelta(deb("1.0"));
+        base.delete();
+        File deb = deb("2.0");
+        assertNull(makeDelta(deb));
+        assertTrue(log(), log().contains("No base for hello all"));
+        assertBase(deb);
+    }
+
+    @Test
+    public void namesDeltaAfterBothVersions() throws Exception {
+        assumeTrue(new File("/usr/bin/debdelta").canExecute());
+        makeDelta(deb("1:1.0"));
+        String name = makeDelta(deb("1:2.0"));
+        assertEquals(log(), "hello_1%3a1.0_1%3a2.0_all", name);
+        assertTrue(delta.isFile());
+    }
+
+    private String makeDelta(File deb) throws Exception {
+        return DeltaBuilder.makeDelta(deb, delta, root, new PrintStream(log, true));
+    }
+
+    private void assertBase(File deb) throws Exception {
+        assertArrayEquals(FileUtils.readFileToByteArray(deb), FileUtils
+                .readFileToByteArray(base));
+        assertEquals(Digests.of(base).sha256, FileUtils.readFileToString(checksum).trim());
+    }
+
+    private String log() {
+        return log.toString();
+    }
+
+    private File deb(String version) throws Exception {
+        File deb = new File(tmp.getRoot(), ".packaged.deb");
+        File payload = tmp.newFile();
+        FileUtils.writeStringToFile(payload, "hello " + version + "\n");
+        DebArchiveWriter writer = new DebArchiveWriter(deb, null, -1);
+        try {
+            writer.addControlFile("control", "Package: hello\nVersion: " + version
+                    + "\nArchitecture: all\nMaintainer: Jane Doe <jane@example.com>\n"
+                    + "Description: prints a greeting\n", 0644);
+            writer.addFile("usr/share/hello/version", payload);
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        return deb;
+    }
+}
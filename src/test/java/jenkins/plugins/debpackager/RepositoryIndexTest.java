@@ -0,0 +1,78 @@
+package jenkins.plugins.debpackager;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RepositoryIndexTest {
+
+    private static final String FORMAT = "1.2." + RepositoryIndex.NEXT_VERSION;
+    private static final long TTL = 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File packages;
+    private RepositoryIndex index;
+
+    @Before
+    public void createIndex() throws IOException {
+        packages = tmp.newFile("Packages");
+        publish("1.1.3", "1.2.7");
+        index = RepositoryIndex.get(packages.getPath());
+    }
+
+    @Test
+    public void handsOutEachNumberOnce() throws IOException {
+        assertEquals("1.2.8", index.nextVersion("hello", FORMAT, TTL));
+        assertEquals("1.2.9", index.nextVersion("hello", FORMAT, TTL));
+        assertEquals("1.3.1", index.nextVersion("hello", "1.3." + RepositoryIndex.NEXT_VERSION,
+                TTL));
+    }
+
+    @Test
+    public void releasedNumberIsHandedOutAgain() throws IOException {
+        assertEquals("1.2.8", index.nextVersion("hello", FORMAT, TTL));
+        index.release("hello", "1.2.8");
+        assertEquals(Arrays.asList("1.1.3", "1.2.7"), Arrays.asList(index.versions("hello",
+                TTL)));
+        assertEquals("1.2.8", index.nextVersion("hello", FORMAT, TTL));
+    }
+
+    @Test
+    public void publishedNumberStaysTaken() throws IOException {
+        assertEquals("1.2.8", index.nextVersion("hello", FORMAT, TTL));
+        publish("1.1.3", "1.2.7", "1.2.8");
+        index.refresh(0);
+        index.release("hello", "1.2.8");
+        assertEquals("1.2.9", index.nextVersion("hello", FORMAT, TTL));
+    }
+
+    @Test
+    public void releaseKeepsOtherReservations() throws IOException {
+        assertEquals("1.2.8", index.nextVersion("hello", FORMAT, TTL));
+        assertEquals("1.2.9", index.nextVersion("hello", FORMAT, TTL));
+        index.release("hello", "1.2.8");
+        index.refresh(0);
+        assertEquals(Arrays.asList("1.1.3", "1.2.7", "1.2.9"), Arrays.asList(index.versions(
+                "hello", TTL)));
+        assertEquals("1.2.10", index.nextVersion("hello", FORMAT, TTL));
+    }
+
+    private void publish(String... versions) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String version : versions) {
+            sb.append("Package: hello\nVersion: ").append(version).append(
+                    "\nArchitecture: all\n\n");
+        }
+        FileUtils.writeStringToFile(packages, sb.toString(), "UTF-8");
+    }
+}
@@ -0,0 +1,138 @@
+package jenkins.plugins.debpackager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WorkspaceScannerTest {
+
+    private static final String STAGING_EXCLUDES = ".packaged/, .packaged.*, "
+            + IsolatedStaging.BUILDS + "/";
+
+    private static final String[] FILES = { "README", "build.xml", "src/main/App.java",
+            "src/main/App.class", "src/main/res/app.properties", "src/test/AppTest.java",
+            "lib/a.jar", "lib/ext/b.jar", "lib/ext/deep/c.jar", "lib/ext/deep/notes.txt",
+            "target/classes/App.class", "target/app.jar", "docs/a/b/c/index.html",
+            ".git/config", "src/.svn/entries", "src/main/App.java~", ".packaged/usr/App.class",
+            ".packaged.deb", ".packaged.builds/tag/.packaged.deb", ".packaged.trash-1/x" };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File workspace;
+
+    @Before
+    public void createFixture() throws IOException {
+        workspace = tmp.newFolder("ws");
+        for (String file : FILES) {
+            FileUtils.writeStringToFile(new File(workspace, file), file);
+        }
+    }
+
+    @Test
+    public void matchesEverything() throws Exception {
+        assertSameAsAnt("", "**", "");
+    }
+
+    @Test
+    public void matchesNestedDoubleStars() throws Exception {
+        assertSameAsAnt("", "**/ext/**/*.jar", "");
+        assertSameAsAnt("", "src/**/*.java, docs/**/c/**", "");
+        assertSameAsAnt("", "**/deep/**", "**/*.txt");
+    }
+
+    @Test
+    public void appliesExcludes() throws Exception {
+        assertSameAsAnt("", "**/*.class, **/*.jar", "target/, lib/ext/**");
+        assertSameAsAnt("", "**", "src/**/*.class, **/deep/, README");
+    }
+
+    @Test
+    public void appliesDefaultExcludes() throws Exception {
+        assertSameAsAnt("", "**/config, **/entries, **/*~", "");
+    }
+
+    @Test
+    public void matchesBelowWorkingDir() throws Exception {
+        assertSameAsAnt("src", "**/*.java", "test/");
+        assertSameAsAnt("lib/ext", "**", "deep/*.txt");
+    }
+
+    @Test
+    public void scansAllRulesInOneWalk() throws Exception {
+        List<CopyPath> paths = Arrays.asList(rule("", "**/*.jar", "lib/ext/deep/"),
+                rule("src", "main/**", "**/*.class"), rule("", "docs/", ""));
+        List<List<String>> matches = WorkspaceScanner.scan(workspace, paths);
+        assertEquals(paths.size(), matches.size());
+        for (int i = 0; i < paths.size(); i++) {
+            CopyPath path = paths.get(i);
+            assertEquals(path.toString(), ant(path.getWorkingDir(), path.getInclude(), path
+                    .getExclude()), sorted(matches.get(i)));
+        }
+    }
+
+    @Test
+    public void neverMatchesItsOwnOutput() throws Exception {
+        List<String> matches = WorkspaceScanner.scan(workspace,
+                Collections.singletonList(rule("", "**", ""))).get(0);
+        for (String file : matches) {
+            assertTrue(file, !file.startsWith(".packaged"));
+        }
+    }
+
+    @Test
+    public void followsSymlinkedDirectoriesWithoutLooping() throws Exception {
+        assumeTrue(!System.getProperty("os.name").startsWith("Windows"));
+        assertEquals(0, new ProcessBuilder("ln", "-s", "..", "loop").directory(
+                new File(workspace, "lib/ext")).start().waitFor());
+        List<String> matches = WorkspaceScanner.scan(workspace,
+                Collections.singletonList(rule("lib", "**/*.jar", ""))).get(0);
+        assertTrue(matches.toString(), matches.contains("a.jar"));
+        assertTrue(matches.toString(), matches.contains("ext/deep/c.jar"));
+    }
+
+    private void assertSameAsAnt(String workingDir, String include, String exclude)
+            throws Exception {
+        List<String> matches = WorkspaceScanner.scan(workspace,
+                Collections.singletonList(rule(workingDir, include, exclude))).get(0);
+        assertEquals(include + " - " + exclude, ant(workingDir, include, exclude),
+                sorted(matches));
+    }
+
+    /**
+     * The files the per-rule Ant scan of the same rule finds.
+     */
+    private List<String> ant(String workingDir, String include, String exclude) {
+        File base = workingDir.length() == 0 ? workspace : new File(workspace, workingDir);
+        FileSet fileSet = Util.createFileSet(base, include, exclude + ", " + STAGING_EXCLUDES);
+        return sorted(Arrays.asList(fileSet.getDirectoryScanner(new Project())
+                .getIncludedFiles()));
+    }
+
+    private static CopyPath rule(String workingDir, String include, String exclude) {
+        return new CopyPath(workingDir, include, exclude, "/opt/app", null, null);
+    }
+
+    private static List<String> sorted(List<String> files) {
+        List<String> sorted = new ArrayList<String>(files);
+        Collections.sort(sorted);
+        return sorted;
+    }
+}